@@ -0,0 +1,33 @@
+package com.snail.easyble.callback
+
+import com.snail.easyble.core.Device
+import com.snail.easyble.core.MethodInfo
+import com.snail.easyble.core.MethodInvoker
+import com.snail.easyble.core.RequestBatch
+import com.snail.easyble.core.ValueTypePair
+import com.snail.easyble.core.typed
+
+/**
+ * 批处理结果回调
+ *
+ * date: 2026/10/18 16:31
+ */
+interface BatchCallback {
+    companion object {
+        internal fun getMethodInfo(device: Device, tag: String, isSuccess: Boolean, results: List<RequestBatch.StepResult>): MethodInfo {
+            return MethodInfo("onBatchFinished", arrayOf(ValueTypePair(device, Device::class.java), ValueTypePair(tag, String::class.java),
+                    ValueTypePair(isSuccess, Boolean::class.java), ValueTypePair(results, List::class.java)))
+                .typed<BatchCallback>(SIGNATURE) { it.onBatchFinished(device, tag, isSuccess, results) }
+        }
+
+        private val SIGNATURE = MethodInvoker.signatureOf("onBatchFinished", Device::class.java, String::class.java, Boolean::class.java, List::class.java)
+    }
+
+    /**
+     * 批处理结束
+     *
+     * @param isSuccess 所有步骤是否都成功
+     * @param results 已执行步骤的结果，按执行顺序。某一步失败后不再执行后面的步骤，失败的步骤为最后一个
+     */
+    fun onBatchFinished(device: Device, tag: String, isSuccess: Boolean, results: List<RequestBatch.StepResult>)
+}
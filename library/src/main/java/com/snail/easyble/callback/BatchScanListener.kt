@@ -0,0 +1,17 @@
+package com.snail.easyble.callback
+
+import com.snail.easyble.core.BleConfig
+import com.snail.easyble.core.Device
+
+/**
+ * 批量接收搜索结果的监听器。[BleConfig.isMainThreadBatching]为true时，一帧内搜索到的设备通过[onScanResults]一次回调，
+ * 不再回调[onScanResult]；为false时仍逐个回调[onScanResult]
+ *
+ * date: 2026/10/18 23:35
+ */
+interface BatchScanListener : ScanListener {
+    /**
+     * 一帧内搜索到的BLE设备，按搜索到的顺序排列
+     */
+    fun onScanResults(devices: List<Device>)
+}
@@ -2,7 +2,9 @@ package com.snail.easyble.callback
 
 import com.snail.easyble.core.Device
 import com.snail.easyble.core.MethodInfo
+import com.snail.easyble.core.MethodInvoker
 import com.snail.easyble.core.ValueTypePair
+import com.snail.easyble.core.typed
 import java.util.*
 
 /**
@@ -15,7 +17,10 @@ interface CharacteristicChangedCallback {
         internal fun getMethodInfo(device: Device, serviceUuid: UUID, characteristicUuid: UUID, value: ByteArray): MethodInfo {
             return MethodInfo("onCharacteristicChanged", arrayOf(ValueTypePair(device, Device::class.java), ValueTypePair(serviceUuid, UUID::class.java),
                     ValueTypePair(characteristicUuid, UUID::class.java), ValueTypePair(value, ByteArray::class.java)))
+                .typed<CharacteristicChangedCallback>(SIGNATURE) { it.onCharacteristicChanged(device, serviceUuid, characteristicUuid, value) }
         }
+
+        internal val SIGNATURE = MethodInvoker.signatureOf("onCharacteristicChanged", Device::class.java, UUID::class.java, UUID::class.java, ByteArray::class.java)
     }
     
     fun onCharacteristicChanged(device: Device, serviceUuid: UUID, characteristicUuid: UUID, value: ByteArray)
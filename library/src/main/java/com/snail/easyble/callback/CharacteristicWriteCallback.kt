@@ -2,7 +2,9 @@ package com.snail.easyble.callback
 
 import com.snail.easyble.core.Device
 import com.snail.easyble.core.MethodInfo
+import com.snail.easyble.core.MethodInvoker
 import com.snail.easyble.core.ValueTypePair
+import com.snail.easyble.core.typed
 import java.util.*
 
 /**
@@ -16,7 +18,10 @@ interface CharacteristicWriteCallback : RequestFailedCallback {
         internal fun getMethodInfo(device: Device, tag: String, serviceUuid: UUID, characteristicUuid: UUID, value: ByteArray): MethodInfo {
             return MethodInfo("onCharacteristicWrite", arrayOf(ValueTypePair(device, Device::class.java), ValueTypePair(tag, String::class.java),
                 ValueTypePair(serviceUuid, UUID::class.java), ValueTypePair(characteristicUuid, UUID::class.java), ValueTypePair(value, ByteArray::class.java)))
+                .typed<CharacteristicWriteCallback>(SIGNATURE) { it.onCharacteristicWrite(device, tag, serviceUuid, characteristicUuid, value) }
         }
+
+        private val SIGNATURE = MethodInvoker.signatureOf("onCharacteristicWrite", Device::class.java, String::class.java, UUID::class.java, UUID::class.java, ByteArray::class.java)
     }
     
     fun onCharacteristicWrite(device: Device, tag: String, serviceUuid: UUID, characteristicUuid: UUID, value: ByteArray)
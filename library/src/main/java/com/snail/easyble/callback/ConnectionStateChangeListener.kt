@@ -2,12 +2,36 @@ package com.snail.easyble.callback
 
 import com.snail.easyble.core.Device
 import com.snail.easyble.core.IConnection
+import com.snail.easyble.core.MethodInfo
+import com.snail.easyble.core.MethodInvoker
+import com.snail.easyble.core.ValueTypePair
+import com.snail.easyble.core.typed
 
 /**
  * date: 2018/6/15 01:00
  * author: zengfansheng
  */
 interface ConnectionStateChangeListener {
+    companion object {
+        internal fun getStateChangedMethodInfo(device: Device): MethodInfo {
+            return MethodInfo("onConnectionStateChanged", arrayOf(ValueTypePair(device, Device::class.java)))
+                .typed<ConnectionStateChangeListener>(STATE_CHANGED_SIGNATURE) { it.onConnectionStateChanged(device) }
+        }
+
+        internal fun getConnectFailedMethodInfo(device: Device?, type: Int): MethodInfo {
+            return MethodInfo("onConnectFailed", arrayOf(ValueTypePair(device, Device::class.java), ValueTypePair(type, Int::class.java)))
+                .typed<ConnectionStateChangeListener>(CONNECT_FAILED_SIGNATURE) { it.onConnectFailed(device, type) }
+        }
+
+        internal fun getConnectTimeoutMethodInfo(device: Device, type: Int): MethodInfo {
+            return MethodInfo("onConnectTimeout", arrayOf(ValueTypePair(device, Device::class.java), ValueTypePair(type, Int::class.java)))
+                .typed<ConnectionStateChangeListener>(CONNECT_TIMEOUT_SIGNATURE) { it.onConnectTimeout(device, type) }
+        }
+
+        private val STATE_CHANGED_SIGNATURE = MethodInvoker.signatureOf("onConnectionStateChanged", Device::class.java)
+        private val CONNECT_FAILED_SIGNATURE = MethodInvoker.signatureOf("onConnectFailed", Device::class.java, Int::class.java)
+        private val CONNECT_TIMEOUT_SIGNATURE = MethodInvoker.signatureOf("onConnectTimeout", Device::class.java, Int::class.java)
+    }
 
     /**
      * 连接状态变化回调
@@ -2,7 +2,9 @@ package com.snail.easyble.callback
 
 import com.snail.easyble.core.Device
 import com.snail.easyble.core.MethodInfo
+import com.snail.easyble.core.MethodInvoker
 import com.snail.easyble.core.ValueTypePair
+import com.snail.easyble.core.typed
 import java.util.*
 
 /**
@@ -16,7 +18,10 @@ interface IndicationChangedCallback : RequestFailedCallback {
         internal fun getMethodInfo(device: Device, tag: String, serviceUuid: UUID, characteristicUuid: UUID, descriptorUuid: UUID, isEnabled: Boolean): MethodInfo {
             return MethodInfo("onIndicationChanged", arrayOf(ValueTypePair(device, Device::class.java), ValueTypePair(tag, String::class.java), ValueTypePair(serviceUuid, UUID::class.java),
                     ValueTypePair(characteristicUuid, UUID::class.java), ValueTypePair(descriptorUuid, UUID::class.java), ValueTypePair(isEnabled, Boolean::class.java)))
+                .typed<IndicationChangedCallback>(SIGNATURE) { it.onIndicationChanged(device, tag, serviceUuid, characteristicUuid, descriptorUuid, isEnabled) }
         }
+
+        private val SIGNATURE = MethodInvoker.signatureOf("onIndicationChanged", Device::class.java, String::class.java, UUID::class.java, UUID::class.java, UUID::class.java, Boolean::class.java)
     }
     
     fun onIndicationChanged(device: Device, tag: String, serviceUuid: UUID, characteristicUuid: UUID, descriptorUuid: UUID, isEnabled: Boolean)
@@ -3,7 +3,9 @@ package com.snail.easyble.callback
 import androidx.annotation.IntRange
 import com.snail.easyble.core.Device
 import com.snail.easyble.core.MethodInfo
+import com.snail.easyble.core.MethodInvoker
 import com.snail.easyble.core.ValueTypePair
+import com.snail.easyble.core.typed
 
 /**
  *
@@ -16,7 +18,10 @@ interface MtuChangedCallback : RequestFailedCallback {
         internal fun getMethodInfo(device: Device, tag: String, @IntRange(from = 23, to = 517) mtu: Int): MethodInfo {
             return MethodInfo("onMtuChanged", arrayOf(ValueTypePair(device, Device::class.java), 
                     ValueTypePair(tag, String::class.java), ValueTypePair(mtu, Int::class.java)))
+                .typed<MtuChangedCallback>(SIGNATURE) { it.onMtuChanged(device, tag, mtu) }
         }
+
+        private val SIGNATURE = MethodInvoker.signatureOf("onMtuChanged", Device::class.java, String::class.java, Int::class.java)
     }
     
     /**
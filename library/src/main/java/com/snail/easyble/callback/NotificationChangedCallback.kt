@@ -2,7 +2,9 @@ package com.snail.easyble.callback
 
 import com.snail.easyble.core.Device
 import com.snail.easyble.core.MethodInfo
+import com.snail.easyble.core.MethodInvoker
 import com.snail.easyble.core.ValueTypePair
+import com.snail.easyble.core.typed
 import java.util.*
 
 /**
@@ -16,7 +18,10 @@ interface NotificationChangedCallback : RequestFailedCallback {
         internal fun getMethodInfo(device: Device, tag: String, serviceUuid: UUID, characteristicUuid: UUID, descriptorUuid: UUID, isEnabled: Boolean): MethodInfo {
             return MethodInfo("onNotificationChanged", arrayOf(ValueTypePair(device, Device::class.java), ValueTypePair(tag, String::class.java), ValueTypePair(serviceUuid, UUID::class.java),
                     ValueTypePair(characteristicUuid, UUID::class.java), ValueTypePair(descriptorUuid, UUID::class.java), ValueTypePair(isEnabled, Boolean::class.java)))
+                .typed<NotificationChangedCallback>(SIGNATURE) { it.onNotificationChanged(device, tag, serviceUuid, characteristicUuid, descriptorUuid, isEnabled) }
         }
+
+        private val SIGNATURE = MethodInvoker.signatureOf("onNotificationChanged", Device::class.java, String::class.java, UUID::class.java, UUID::class.java, UUID::class.java, Boolean::class.java)
     }
     
     fun onNotificationChanged(device: Device, tag: String, serviceUuid: UUID, characteristicUuid: UUID, descriptorUuid: UUID, isEnabled: Boolean)
@@ -2,7 +2,9 @@ package com.snail.easyble.callback
 
 import com.snail.easyble.core.Device
 import com.snail.easyble.core.MethodInfo
+import com.snail.easyble.core.MethodInvoker
 import com.snail.easyble.core.ValueTypePair
+import com.snail.easyble.core.typed
 
 /**
  *
@@ -15,7 +17,10 @@ interface PhyReadCallback : RequestFailedCallback {
         internal fun getMethodInfo(device: Device, tag: String, txPhy: Int, rxPhy: Int): MethodInfo {
             return MethodInfo("onPhyRead", arrayOf(ValueTypePair(device, Device::class.java), ValueTypePair(tag, String::class.java),
                     ValueTypePair(txPhy, Int::class.java), ValueTypePair(rxPhy, Int::class.java)))
+                .typed<PhyReadCallback>(SIGNATURE) { it.onPhyRead(device, tag, txPhy, rxPhy) }
         }
+
+        private val SIGNATURE = MethodInvoker.signatureOf("onPhyRead", Device::class.java, String::class.java, Int::class.java, Int::class.java)
     }
     
     fun onPhyRead(device: Device, tag: String, txPhy: Int, rxPhy: Int)
@@ -0,0 +1,40 @@
+package com.snail.easyble.callback
+
+import com.snail.easyble.core.Device
+import com.snail.easyble.core.MethodInfo
+import com.snail.easyble.core.MethodInvoker
+import com.snail.easyble.core.ValueTypePair
+import com.snail.easyble.core.typed
+import java.nio.ByteBuffer
+import java.util.*
+
+/**
+ * 使用缓冲池传递数据的回调。value是缓冲池中缓冲区的只读视图，方法返回后即被回收复用，不能在方法外保留，需要时复制出来
+ *
+ * date: 2026/10/18 18:52
+ */
+interface PooledValueCallback {
+    companion object {
+        internal fun getChangedMethodInfo(device: Device, serviceUuid: UUID, characteristicUuid: UUID, value: ByteBuffer): MethodInfo {
+            return MethodInfo("onCharacteristicChanged", arrayOf(ValueTypePair(device, Device::class.java), ValueTypePair(serviceUuid, UUID::class.java),
+                    ValueTypePair(characteristicUuid, UUID::class.java), ValueTypePair(value, ByteBuffer::class.java)))
+                .typed<PooledValueCallback>(CHANGED_SIGNATURE) { it.onCharacteristicChanged(device, serviceUuid, characteristicUuid, value) }
+        }
+
+        internal fun getReadMethodInfo(device: Device, tag: String, serviceUuid: UUID, characteristicUuid: UUID, value: ByteBuffer): MethodInfo {
+            return MethodInfo("onCharacteristicRead", arrayOf(ValueTypePair(device, Device::class.java), ValueTypePair(tag, String::class.java),
+                    ValueTypePair(serviceUuid, UUID::class.java), ValueTypePair(characteristicUuid, UUID::class.java), ValueTypePair(value, ByteBuffer::class.java)))
+                .typed<PooledValueCallback>(READ_SIGNATURE) { it.onCharacteristicRead(device, tag, serviceUuid, characteristicUuid, value) }
+        }
+
+        private val CHANGED_SIGNATURE = MethodInvoker.signatureOf("onCharacteristicChanged", Device::class.java, UUID::class.java, UUID::class.java, ByteBuffer::class.java)
+        private val READ_SIGNATURE = MethodInvoker.signatureOf("onCharacteristicRead", Device::class.java, String::class.java, UUID::class.java, UUID::class.java, ByteBuffer::class.java)
+    }
+
+    fun onCharacteristicChanged(device: Device, serviceUuid: UUID, characteristicUuid: UUID, value: ByteBuffer)
+
+    /**
+     * 只回调没有设置请求回调的读特征结果
+     */
+    fun onCharacteristicRead(device: Device, tag: String, serviceUuid: UUID, characteristicUuid: UUID, value: ByteBuffer)
+}
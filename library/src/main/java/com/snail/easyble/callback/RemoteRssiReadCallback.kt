@@ -2,7 +2,9 @@ package com.snail.easyble.callback
 
 import com.snail.easyble.core.Device
 import com.snail.easyble.core.MethodInfo
+import com.snail.easyble.core.MethodInvoker
 import com.snail.easyble.core.ValueTypePair
+import com.snail.easyble.core.typed
 
 /**
  *
@@ -15,7 +17,10 @@ interface RemoteRssiReadCallback : RequestFailedCallback {
         internal fun getMethodInfo(device: Device, tag: String, rssi: Int): MethodInfo {
             return MethodInfo("onRemoteRssiRead", arrayOf(ValueTypePair(device, Device::class.java), 
                     ValueTypePair(tag, String::class.java), ValueTypePair(rssi, Int::class.java)))
+                .typed<RemoteRssiReadCallback>(SIGNATURE) { it.onRemoteRssiRead(device, tag, rssi) }
         }
+
+        private val SIGNATURE = MethodInvoker.signatureOf("onRemoteRssiRead", Device::class.java, String::class.java, Int::class.java)
     }
     
     fun onRemoteRssiRead(device: Device, tag: String, rssi: Int)
@@ -13,7 +13,10 @@ interface RequestFailedCallback {
         internal fun getMethodInfo(device: Device, tag: String, requestType: Request.RequestType, failType: Int, src: ByteArray?): MethodInfo {
             return MethodInfo("onRequestFailed", arrayOf(ValueTypePair(device, Device::class.java), ValueTypePair(tag, String::class.java),
                     ValueTypePair(requestType, Request.RequestType::class.java), ValueTypePair(failType, Int::class.java), ValueTypePair(src, ByteArray::class.java)))
+                .typed<RequestFailedCallback>(SIGNATURE) { it.onRequestFailed(device, tag, requestType, failType, src) }
         }
+
+        private val SIGNATURE = MethodInvoker.signatureOf("onRequestFailed", Device::class.java, String::class.java, Request.RequestType::class.java, Int::class.java, ByteArray::class.java)
     }
     
     /**
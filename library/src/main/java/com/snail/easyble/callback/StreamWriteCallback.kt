@@ -0,0 +1,48 @@
+package com.snail.easyble.callback
+
+import com.snail.easyble.core.Device
+import com.snail.easyble.core.MethodInfo
+import com.snail.easyble.core.MethodInvoker
+import com.snail.easyble.core.ValueTypePair
+import com.snail.easyble.core.typed
+import java.util.*
+
+/**
+ * 流式写入回调
+ *
+ * date: 2026/10/18 14:32
+ */
+interface StreamWriteCallback : RequestFailedCallback {
+    companion object {
+        internal fun getProgressMethodInfo(device: Device, tag: String, serviceUuid: UUID, characteristicUuid: UUID, sentBytes: Long,
+                                           totalBytes: Long, bytesPerSecond: Long): MethodInfo {
+            return MethodInfo("onWriteProgress", arrayOf(ValueTypePair(device, Device::class.java), ValueTypePair(tag, String::class.java),
+                ValueTypePair(serviceUuid, UUID::class.java), ValueTypePair(characteristicUuid, UUID::class.java), ValueTypePair(sentBytes, Long::class.java),
+                ValueTypePair(totalBytes, Long::class.java), ValueTypePair(bytesPerSecond, Long::class.java)))
+                .typed<StreamWriteCallback>(PROGRESS_SIGNATURE) { it.onWriteProgress(device, tag, serviceUuid, characteristicUuid, sentBytes, totalBytes, bytesPerSecond) }
+        }
+
+        internal fun getFinishedMethodInfo(device: Device, tag: String, serviceUuid: UUID, characteristicUuid: UUID, totalBytes: Long): MethodInfo {
+            return MethodInfo("onWriteFinished", arrayOf(ValueTypePair(device, Device::class.java), ValueTypePair(tag, String::class.java),
+                ValueTypePair(serviceUuid, UUID::class.java), ValueTypePair(characteristicUuid, UUID::class.java), ValueTypePair(totalBytes, Long::class.java)))
+                .typed<StreamWriteCallback>(FINISHED_SIGNATURE) { it.onWriteFinished(device, tag, serviceUuid, characteristicUuid, totalBytes) }
+        }
+
+        private val PROGRESS_SIGNATURE = MethodInvoker.signatureOf("onWriteProgress", Device::class.java, String::class.java, UUID::class.java, UUID::class.java, Long::class.java, Long::class.java, Long::class.java)
+        private val FINISHED_SIGNATURE = MethodInvoker.signatureOf("onWriteFinished", Device::class.java, String::class.java, UUID::class.java, UUID::class.java, Long::class.java)
+    }
+
+    /**
+     * 每发出一包回调一次
+     *
+     * @param sentBytes 已发出的字节数
+     * @param totalBytes 总字节数，未知时为-1
+     * @param bytesPerSecond 平均速率，不含暂停的时间
+     */
+    fun onWriteProgress(device: Device, tag: String, serviceUuid: UUID, characteristicUuid: UUID, sentBytes: Long, totalBytes: Long, bytesPerSecond: Long)
+
+    /**
+     * 全部数据写入完成
+     */
+    fun onWriteFinished(device: Device, tag: String, serviceUuid: UUID, characteristicUuid: UUID, totalBytes: Long)
+}
@@ -3,15 +3,19 @@ package com.snail.easyble.core
 import android.bluetooth.*
 import android.os.Build
 import android.os.Handler
+import android.os.HandlerThread
 import android.os.Looper
 import android.os.Message
+import android.util.Log
 import androidx.annotation.IntRange
 import androidx.annotation.RequiresApi
 import com.snail.easyble.callback.*
+import com.snail.easyble.frame.FrameDecoder
+import com.snail.easyble.util.BleLogger
 import com.snail.easyble.util.BleUtils
 import java.lang.ref.WeakReference
+import java.nio.ByteBuffer
 import java.util.*
-import java.util.concurrent.ConcurrentLinkedQueue
 
 /**
  * date: 2018/4/11 16:37
@@ -22,16 +26,85 @@ abstract class BaseConnection internal constructor(val device: Device, protected
         BluetoothGattCallback(), IConnection {
     var bluetoothGatt: BluetoothGatt? = null
         protected set
-    private var requestQueue: MutableList<Request> = ArrayList()
+    private val requestQueue = RequestQueue()
     private var currentRequest: Request? = null
     private var pendingCharacteristic: BluetoothGattCharacteristic? = null
     protected var bluetoothAdapter: BluetoothAdapter? = null
     protected var isReleased: Boolean = false
     internal var connHandler: Handler
+    private val metrics = if (Ble.instance.bleConfig.isMetricsEnabled) ConnectionMetrics(device) else null
+    //ConnectionThreadMode.DEDICATED时连接独占的线程
+    private val connThread: HandlerThread?
     private var characteristicChangedCallback: CharacteristicChangedCallback? = null
+    //写时复制，回调线程遍历时不加锁
+    @Volatile
+    private var notificationStreams = emptyArray<NotificationStream>()
+    @Volatile
+    private var frameDecoders = emptyArray<FrameDecoderEntry>()
+    //解码出的帧，只在回调线程使用
+    private val decodedFrames = ArrayList<ByteArray>()
+    @Volatile
+    private var pooledValueCallback: PooledValueCallback? = null
+    private var bufferPool: ByteBufferPool? = null
+    private val readCache = ReadCache()
+    @Volatile
+    private var gattIndex: GattIndex? = null
+    //重连后需恢复的状态，key为服务及特征
+    private val subscriptions = LinkedHashMap<String, Subscription>()
+    @Volatile
+    private var restoreMtu = 0
+    @Volatile
+    private var restorePhy: ByteArray? = null
+    private var gattIndexGeneration = 0
+    //自适应写入节奏，第一次写入时创建
+    private var writePacer: WritePacer? = null
+    //分包发送时复用的包缓冲区
+    private var packageBuffer: ByteArray? = null
+    //可被合并的读请求，包括正在执行的
+    private val mergeIndex = HashMap<String, Request>()
+    //未完成的请求，包括排队中、正在执行及被合并的，key为tag
+    private val tagIndex = HashMap<String, LinkedHashSet<Request>>()
+
+    /**
+     * 使用缓存完成的读请求数
+     */
+    var cachedReadCount = 0
+        private set
+
+    /**
+     * 因合并读请求而省去的读操作次数
+     */
+    var mergedReadCount = 0
+        private set
+
+    /**
+     * 因合并写请求而省去的写请求次数
+     */
+    var mergedWriteCount = 0
+        private set
+
+    /**
+     * 当前协商的MTU，断开连接后恢复为默认值
+     */
+    var mtu = IConnection.DEFAULT_MTU
+        protected set
+
+    /**
+     * 实际使用的包大小。[ConnectionConfig.isAutoPackageSize]为true时为[mtu] - 3，否则为[ConnectionConfig.packageSize]
+     */
+    val packageSize: Int
+        get() = if (config.isAutoPackageSize) mtu - 3 else config.packageSize
 
     init {
-        connHandler = ConnHandler(this)
+        val mode = Ble.instance.bleConfig.connectionThreadMode
+        connThread = if (mode == ConnectionThreadMode.DEDICATED) HandlerThread("easyble-connection-${device.addr}") else null
+        connThread?.start()
+        val looper = when (mode) {
+            ConnectionThreadMode.MAIN -> Looper.getMainLooper()
+            ConnectionThreadMode.DEDICATED -> connThread!!.looper
+            ConnectionThreadMode.SHARED -> Ble.instance.getSharedConnectionLooper(device.addr)
+        }
+        connHandler = ConnHandler(this, looper)
     }
 
     /**
@@ -47,7 +120,19 @@ abstract class BaseConnection internal constructor(val device: Device, protected
      */
     fun clearRequestQueue() {
         synchronized(this) {
+            requestQueue.toList().forEach {
+                it.closeSource()
+                endWrite(it)
+                recordDropped(it, IConnection.REQUEST_FAIL_TYPE_REQUEST_CANCELLED)
+            }
             requestQueue.clear()
+            mergeIndex.clear()
+            tagIndex.clear()
+            currentRequest?.let {
+                it.closeSource()
+                endWrite(it)
+                recordDropped(it, IConnection.REQUEST_FAIL_TYPE_REQUEST_CANCELLED)
+            }
             currentRequest = null
         }
     }
@@ -59,19 +144,105 @@ abstract class BaseConnection internal constructor(val device: Device, protected
         this.characteristicChangedCallback = characteristicChangedCallback
     }
 
+    /**
+     * 打开特征的通知数据流。数据流只负责接收数据，需要另外开启通知。同一特征可打开多个数据流，各自缓冲
+     *
+     * @param capacity 缓冲区大小，[NotificationStream.Overflow.KEEP_LATEST]时固定为1
+     * @param overflow 缓冲区满时的处理方式
+     */
+    @JvmOverloads
+    fun openNotificationStream(service: UUID, characteristic: UUID, capacity: Int = 64,
+                               overflow: NotificationStream.Overflow = NotificationStream.Overflow.DROP_OLDEST): NotificationStream {
+        val stream = NotificationStream(this, service, characteristic, capacity, overflow)
+        synchronized(this) {
+            notificationStreams += stream
+        }
+        return stream
+    }
+
+    /**
+     * 获取自适应写入节奏的当前值，未开启[ConnectionConfig.isAdaptiveWritePacing]或者还没有写入过时返回null
+     */
+    fun getWritePacing(): WritePacing? {
+        return writePacer?.snapshot()
+    }
+
+    /**
+     * 获取请求统计的快照，[BleConfig.isMetricsEnabled]为false时返回null
+     */
+    fun getMetricsSnapshot(): ConnectionMetrics.Snapshot? {
+        return metrics?.snapshot(synchronized(this) { requestQueue.size })
+    }
+
+    /**
+     * 设置使用缓冲池传递数据的回调。设置后通知数据及没有请求回调的读特征结果只通过此回调传递，
+     * 不再通知观察者及[CharacteristicChangedCallback]，数据复制到连接内复用的缓冲区中，减少高频通知时的内存分配
+     *
+     * @param callback null时恢复原来的传递方式
+     */
+    fun setPooledValueCallback(callback: PooledValueCallback?) {
+        synchronized(this) {
+            if (callback != null && bufferPool == null) {
+                bufferPool = ByteBufferPool(config.isBufferLeakDetection)
+            }
+            pooledValueCallback = callback
+        }
+    }
+
+    /**
+     * 设置特征的帧解码器。设置后该特征的通知数据先组帧，观察者、回调及数据流只收到完整的帧
+     *
+     * @param decoder 帧解码器，有状态，不能多个特征共用。null时取消组帧
+     */
+    fun setFrameDecoder(service: UUID, characteristic: UUID, decoder: FrameDecoder?) {
+        synchronized(this) {
+            val list = frameDecoders.filter { it.service != service || it.characteristic != characteristic }.toMutableList()
+            if (decoder != null) {
+                list.add(FrameDecoderEntry(service, characteristic, decoder))
+            }
+            frameDecoders = list.toTypedArray()
+        }
+    }
+
+    /**
+     * 清除所有读取结果的缓存
+     */
+    fun clearReadCache() {
+        readCache.clear()
+    }
+
+    /**
+     * 清除所有帧解码器中未组成帧的数据，断开连接时调用
+     */
+    protected fun resetFrameDecoders() {
+        frameDecoders.forEach { it.decoder.reset() }
+    }
+
+    private class FrameDecoderEntry(val service: UUID, val characteristic: UUID, val decoder: FrameDecoder)
+
+    internal fun removeNotificationStream(stream: NotificationStream) {
+        synchronized(this) {
+            notificationStreams = notificationStreams.filter { it !== stream }.toTypedArray()
+        }
+    }
+
     /**
      * 将指定的请求类型从队列中移除，不触发事件
      */
     fun clearRequestQueueByType(type: Request.RequestType) {
         synchronized(this) {
-            val it = requestQueue.iterator()
-            while (it.hasNext()) {
-                val request = it.next()
-                if (request.type == type) {
-                    it.remove()
-                }
+            requestQueue.removeByType(type).forEach {
+                it.closeSource()
+                endWrite(it)
+                recordDropped(it, IConnection.REQUEST_FAIL_TYPE_REQUEST_CANCELLED)
+                removeFromTagIndex(it)
             }
+            mergeIndex.values.removeAll { it.type == type }
             if (currentRequest != null && currentRequest!!.type == type) {
+                currentRequest!!.closeSource()
+                endWrite(currentRequest!!)
+                recordDropped(currentRequest!!, IConnection.REQUEST_FAIL_TYPE_REQUEST_CANCELLED)
+                removeFromTagIndex(currentRequest!!)
                 currentRequest = null
             }
         }
@@ -82,7 +253,10 @@ abstract class BaseConnection internal constructor(val device: Device, protected
      */
     internal fun clearRequestQueueAndNotify() {
         synchronized(this) {
-            for (request in requestQueue) {
+            //通知失败时批处理会断开后续步骤，先统计
+            requestQueue.toList().forEach { recordDropped(it, IConnection.REQUEST_FAIL_TYPE_CONNECTION_DISCONNECTED) }
+            currentRequest?.let { recordDropped(it, IConnection.REQUEST_FAIL_TYPE_CONNECTION_DISCONNECTED) }
+            for (request in requestQueue.toList()) {
                 handleFailedCallback(request, IConnection.REQUEST_FAIL_TYPE_CONNECTION_DISCONNECTED, false)
             }
             if (currentRequest != null) {
@@ -92,19 +266,160 @@ abstract class BaseConnection internal constructor(val device: Device, protected
         clearRequestQueue()
     }
 
+    //统计未完成就被清除的请求及其未执行的后续步骤。已统计过的不重复统计，见[ConnectionMetrics.onFinished]
+    private fun recordDropped(request: Request, failType: Int) {
+        val metrics = metrics ?: return
+        var r: Request? = request
+        while (r != null) {
+            metrics.onFinished(r, if (r.failType >= 0) r.failType else failType)
+            r = r.next
+        }
+    }
+
     open fun release() {
         isReleased = true
+        notificationStreams.forEach { it.close() }
         connHandler.removeCallbacksAndMessages(null)
         clearRequestQueueAndNotify()
+        connThread?.quitSafely()
+    }
+
+    /**
+     * 发现服务成功后建立索引，之后的查找及请求不再遍历服务列表
+     */
+    protected fun buildGattIndex() {
+        val gatt = bluetoothGatt ?: return
+        gattIndex = GattIndex(gatt.services, ++gattIndexGeneration)
+    }
+
+    /**
+     * 清除索引，之前获取的句柄失效
+     */
+    protected fun clearGattIndex() {
+        gattIndex = null
+    }
+
+    /**
+     * 按MTU、物理层、订阅的顺序作为一个批处理恢复重连前的状态，开启[ConnectionConfig.isRestoreSubscriptions]时才恢复
+     *
+     * @param onFinished 恢复结束后在连接线程调用，不论成功与否
+     * @return 没有需要恢复的状态时返回false，不会调用[onFinished]
+     */
+    protected fun restoreState(onFinished: () -> Unit): Boolean {
+        if (!config.isRestoreSubscriptions) {
+            return false
+        }
+        val requests = ArrayList<Request>()
+        if (restoreMtu > IConnection.DEFAULT_MTU && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            requests.add(Request.newChangeMtuRequest(RESTORE_TAG, restoreMtu, null, Int.MAX_VALUE))
+        }
+        val phy = restorePhy
+        if (phy != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            val txPhy = BleUtils.bytesToLong(false, *Arrays.copyOfRange(phy, 0, 4)).toInt()
+            val rxPhy = BleUtils.bytesToLong(false, *Arrays.copyOfRange(phy, 4, 8)).toInt()
+            val phyOptions = BleUtils.bytesToLong(false, *Arrays.copyOfRange(phy, 8, 12)).toInt()
+            requests.add(Request.newSetPreferredPhyRequest(RESTORE_TAG, txPhy, rxPhy, phyOptions, null, Int.MAX_VALUE))
+        }
+        synchronized(subscriptions) {
+            subscriptions.values.forEach {
+                //服务变化后不存在的特征不再恢复
+                if (getCharacteristic(it.service, it.characteristic) != null) {
+                    requests.add(if (it.isIndication) {
+                        Request.newEnableIndicationRequest(RESTORE_TAG, it.service, it.characteristic, null, Int.MAX_VALUE)
+                    } else {
+                        Request.newEnableNotificationRequest(RESTORE_TAG, it.service, it.characteristic, null, Int.MAX_VALUE)
+                    })
+                }
+            }
+        }
+        if (requests.isEmpty()) {
+            return false
+        }
+        executeChain(requests, RestoreResultListener(gattIndexGeneration, onFinished))
+        return true
+    }
+
+    //记录订阅的变化，重连后恢复
+    private fun updateSubscription(request: Request, isEnabled: Boolean) {
+        val key = "${request.service}:${request.characteristic}"
+        synchronized(subscriptions) {
+            if (isEnabled) {
+                subscriptions[key] = Subscription(request.service!!, request.characteristic!!, request.type == Request.RequestType.ENABLE_INDICATION)
+            } else {
+                subscriptions.remove(key)
+            }
+        }
+    }
+
+    private class Subscription(val service: UUID, val characteristic: UUID, val isIndication: Boolean)
+
+    //恢复的步骤互不影响，全部结束后回调。每个步骤只处理第一个结果
+    private inner class RestoreResultListener(private val generation: Int, private val onFinished: () -> Unit) : RequestResultListener {
+        private val finishedSteps = Collections.newSetFromMap(IdentityHashMap<Request, Boolean>())
+        private var isFinished = false
+
+        @Synchronized
+        override fun onRequestSucceeded(request: Request, value: Any?) {
+            if (finishedSteps.add(request) && request.next == null) {
+                finish()
+            }
+        }
+
+        @Synchronized
+        override fun onRequestFailed(request: Request, failType: Int) {
+            if (!finishedSteps.add(request)) {
+                return
+            }
+            Ble.instance.logger.handleLog(Log.WARN, "restore failed! [addr: ${device.addr}, type: ${request.type}, characteristic: ${request.characteristic}, " +
+                    "failType: $failType]", BleLogger.TYPE_CONNECTION_STATE)
+            if (request.next == null) {
+                finish()
+            }
+        }
+
+        private fun finish() {
+            if (isFinished) {
+                return
+            }
+            isFinished = true
+            connHandler.post {
+                //恢复期间断开或者重新发现了服务则不再通知
+                if (bluetoothGatt != null && gattIndex?.generation == generation) {
+                    onFinished()
+                }
+            }
+        }
+    }
+
+    /**
+     * 获取特征的句柄，使用句柄的请求不再按UUID查找特征。发现服务之前或者特征不存在时返回null
+     */
+    fun getCharacteristicHandle(serviceUuid: UUID, characteristicUuid: UUID): CharacteristicHandle? {
+        return gattIndex?.getCharacteristic(serviceUuid, characteristicUuid)
+    }
+
+    /**
+     * 获取描述符的句柄。发现服务之前或者描述符不存在时返回null
+     */
+    fun getDescriptorHandle(serviceUuid: UUID, characteristicUuid: UUID, descriptorUuid: UUID): DescriptorHandle? {
+        return gattIndex?.getDescriptor(serviceUuid, characteristicUuid, descriptorUuid)
     }
 
     fun getService(serviceUuid: UUID): BluetoothGattService? {
+        val index = gattIndex
+        if (index != null) {
+            return index.getService(serviceUuid)
+        }
         return if (bluetoothGatt != null) {
             bluetoothGatt!!.getService(serviceUuid)
         } else null
     }
 
     fun getCharacteristic(serviceUuid: UUID, characteristicUuid: UUID): BluetoothGattCharacteristic? {
+        val index = gattIndex
+        if (index != null) {
+            return index.getCharacteristic(serviceUuid, characteristicUuid)?.characteristic
+        }
         if (bluetoothGatt != null) {
             val service = bluetoothGatt!!.getService(serviceUuid)
             if (service != null) {
@@ -115,6 +430,10 @@ abstract class BaseConnection internal constructor(val device: Device, protected
     }
 
     fun getDescriptor(serviceUuid: UUID, characteristicUuid: UUID, descriptorUuid: UUID): BluetoothGattDescriptor? {
+        val index = gattIndex
+        if (index != null) {
+            return index.getDescriptor(serviceUuid, characteristicUuid, descriptorUuid)?.descriptor
+        }
         if (bluetoothGatt != null) {
             val service = bluetoothGatt!!.getService(serviceUuid)
             if (service != null) {
@@ -131,13 +450,16 @@ abstract class BaseConnection internal constructor(val device: Device, protected
         if (currentRequest != null) {
             if (currentRequest!!.type == Request.RequestType.READ_CHARACTERISTIC) {
                 val request = currentRequest!!
+                if (releaseIfAborted(request)) {
+                    return
+                }
                 if (status == BluetoothGatt.GATT_SUCCESS) {
-                    if (request.callback != null) {
-                        Ble.instance.getMethodPoster().post(request.callback, CharacteristicReadCallback.getMethodInfo(device, request.tag, 
-                                characteristic.service.uuid, characteristic.uuid, characteristic.value))
-                    } else {
-                        onCharacteristicRead(request.tag, characteristic)
+                    val value = characteristic.value
+                    val ttl = config.getReadCacheTtl(characteristic.uuid)
+                    if (ttl > 0) {
+                        readCache.put(characteristic.service.uuid, characteristic.uuid, null, value, ttl)
                     }
+                    takeWaiters(request).forEach { notifyCharacteristicRead(it, characteristic, value) }
                 } else {
                     handleGattStatusFailed()
                 }
@@ -147,56 +469,146 @@ abstract class BaseConnection internal constructor(val device: Device, protected
     }
 
     override fun onCharacteristicWrite(gatt: BluetoothGatt, characteristic: BluetoothGattCharacteristic, status: Int) {
-        if (currentRequest != null && currentRequest!!.waitWriteResult && currentRequest!!.type == Request.RequestType.WRITE_CHARACTERISTIC) {
+        val req = currentRequest
+        if (req != null && req.isAborted && req.type == Request.RequestType.WRITE_CHARACTERISTIC) {
+            //已取消的写请求，发出的包都回调后让出队列
+            synchronized(this) {
+                if (req === currentRequest) {
+                    if (req.inFlightCount > 0) {
+                        req.inFlightCount--
+                    }
+                    req.isWaitingCallback = false
+                    if (!isGattOperationPending(req)) {
+                        executeNextRequest()
+                    }
+                }
+            }
+        } else if (req != null && req.writeWindow > 0 && req.type == Request.RequestType.WRITE_CHARACTERISTIC) {
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                if (currentRequest!!.remainQueue == null || currentRequest!!.remainQueue!!.isEmpty()) {
-                    val request = currentRequest!!
-                    if (request.callback != null) {
-                        Ble.instance.getMethodPoster().post(request.callback, CharacteristicWriteCallback.getMethodInfo(device, request.tag, 
-                                characteristic.service.uuid, characteristic.uuid, request.value!!))
-                    } else {
-                        onCharacteristicWrite(request.tag, characteristic.service.uuid, characteristic.uuid, request.value!!)
+                //归还一个额度，继续发送
+                val rtt = synchronized(this) {
+                    if (req.inFlightCount > 0) {
+                        req.inFlightCount--
                     }
+                    req.takeRtt(System.nanoTime())
+                }
+                updatePacing(req, true, rtt)
+                writeNextPackage(req)
+            } else {
+                updatePacing(req, false)
+                handleFailedCallback(req, IConnection.REQUEST_FAIL_TYPE_GATT_STATUS_FAILED, true)
+            }
+        } else if (currentRequest != null && currentRequest!!.waitWriteResult && currentRequest!!.type == Request.RequestType.WRITE_CHARACTERISTIC) {
+            val request = currentRequest!!
+            request.isWaitingCallback = false
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                updatePacing(request, true, System.nanoTime() - request.packageSentTime)
+                if (!request.hasRemaining()) {
+                    notifyCharacteristicWrite(request, characteristic)
                     executeNextRequest()
-                } else {
-                    connHandler.removeMessages(MSG_REQUEST_TIMEOUT)
-                    connHandler.sendMessageDelayed(Message.obtain(connHandler, MSG_REQUEST_TIMEOUT, currentRequest), config.requestTimeoutMillis.toLong())
-                    val delay = currentRequest!!.writeDelay.toLong()
+                } else if (!request.isPaused) {
+                    resetRequestTimeout(request)
+                    val delay = request.writeDelay.toLong()
                     if (delay > 0) {
-                        val req = currentRequest
-                        Thread.sleep(delay)
-                        if (req != currentRequest) {
-                            return
-                        }
-                    }
-                    currentRequest!!.sendingBytes = currentRequest!!.remainQueue!!.remove()
-                    if (writeFail(characteristic, currentRequest!!.sendingBytes!!)) {
-                        handleWriteFailed(currentRequest!!)
+                        //延时发下一包，不在回调线程里等待
+                        connHandler.sendMessageDelayed(Message.obtain(connHandler, MSG_WRITE_PACKAGE, request), delay)
+                    } else {
+                        writeNextPackage(request)
                     }
                 }
             } else {
-                handleFailedCallback(currentRequest!!, IConnection.REQUEST_FAIL_TYPE_GATT_STATUS_FAILED, true)
+                updatePacing(request, false)
+                handleFailedCallback(request, IConnection.REQUEST_FAIL_TYPE_GATT_STATUS_FAILED, true)
             }
+        } else if (req != null && req.type == Request.RequestType.WRITE_CHARACTERISTIC && !req.waitWriteResult && status == BluetoothGatt.GATT_SUCCESS) {
+            //不等待回调时，回调只用于采样往返时长
+            val rtt = synchronized(this) { req.takeRtt(System.nanoTime()) }
+            updatePacing(req, true, rtt)
         }
     }
 
     override fun onCharacteristicChanged(gatt: BluetoothGatt, characteristic: BluetoothGattCharacteristic) {
-        onCharacteristicChanged(characteristic)
-        if (characteristicChangedCallback != null) {
-            Ble.instance.getMethodPoster().post(characteristicChangedCallback!!, CharacteristicChangedCallback.getMethodInfo(device, 
-                    characteristic.service.uuid, characteristic.uuid, characteristic.value))
+        Ble.instance.flightRecorder.record(device.addr, FlightRecorder.EVENT_NOTIFICATION, 0, 0, characteristic.value)
+        readCache.invalidate(characteristic.service.uuid, characteristic.uuid, null)
+        val decoder = findFrameDecoder(characteristic)
+        if (decoder == null) {
+            dispatchCharacteristicChanged(characteristic, characteristic.value)
+        } else {
+            //只分发完整的帧
+            decoder.decode(characteristic.value, decodedFrames)
+            decodedFrames.forEach { dispatchCharacteristicChanged(characteristic, it) }
+            decodedFrames.clear()
+        }
+    }
+
+    private fun dispatchCharacteristicChanged(characteristic: BluetoothGattCharacteristic, value: ByteArray) {
+        val streams = notificationStreams
+        if (streams.isNotEmpty()) {
+            val serviceUuid = characteristic.service.uuid
+            for (stream in streams) {
+                if (stream.characteristic == characteristic.uuid && stream.service == serviceUuid) {
+                    stream.offer(value)
+                }
+            }
+        }
+        if (pooledValueCallback != null) {
+            postPooledValue(value) { PooledValueCallback.getChangedMethodInfo(device, characteristic.service.uuid, characteristic.uuid, it) }
+            return
+        }
+        onCharacteristicChanged(characteristic, value)
+        val callback = characteristicChangedCallback
+        if (callback != null) {
+            val poster = Ble.instance.getMethodPoster()
+            if (poster.isPosting(callback, CharacteristicChangedCallback.SIGNATURE)) {
+                //在当前线程执行时直接调用，不分配内存
+                try {
+                    callback.onCharacteristicChanged(device, characteristic.service.uuid, characteristic.uuid, value)
+                } catch (e: Exception) {
+                    e.printStackTrace()
+                }
+            } else {
+                poster.post(callback, CharacteristicChangedCallback.getMethodInfo(device, characteristic.service.uuid, characteristic.uuid, value))
+            }
         }
     }
 
+    //复制到缓冲池的缓冲区中传递，回调结束后归还
+    private fun postPooledValue(value: ByteArray, methodInfo: (ByteBuffer) -> MethodInfo) {
+        val callback = pooledValueCallback ?: return
+        val pool = bufferPool ?: return
+        val buffer = pool.acquire(value)
+        Ble.instance.getMethodPoster().post(callback, methodInfo(buffer.view), Runnable { pool.release(buffer) })
+    }
+
+    private fun findFrameDecoder(characteristic: BluetoothGattCharacteristic): FrameDecoder? {
+        val entries = frameDecoders
+        if (entries.isNotEmpty()) {
+            val serviceUuid = characteristic.service.uuid
+            for (entry in entries) {
+                if (entry.characteristic == characteristic.uuid && entry.service == serviceUuid) {
+                    return entry.decoder
+                }
+            }
+        }
+        return null
+    }
+
     override fun onReadRemoteRssi(gatt: BluetoothGatt?, rssi: Int, status: Int) {
         if (currentRequest != null) {
             if (currentRequest!!.type == Request.RequestType.READ_RSSI) {
+                if (releaseIfAborted(currentRequest!!)) {
+                    return
+                }
                 if (status == BluetoothGatt.GATT_SUCCESS) {
-                    val request = currentRequest!!
-                    if (request.callback != null) {
-                        Ble.instance.getMethodPoster().post(request.callback, RemoteRssiReadCallback.getMethodInfo(device, request.tag, rssi))
-                    } else {
-                        onReadRemoteRssi(request.tag, rssi)
+                    takeWaiters(currentRequest!!).forEach {
+                        val listener = it.resultListener
+                        if (listener != null) {
+                            listener.onRequestSucceeded(it, rssi)
+                        } else if (it.callback != null) {
+                            Ble.instance.getMethodPoster().post(it.callback, RemoteRssiReadCallback.getMethodInfo(device, it.tag, rssi))
+                        } else {
+                            onReadRemoteRssi(it.tag, rssi)
+                        }
                     }
                 } else {
                     handleGattStatusFailed()
@@ -214,25 +626,33 @@ abstract class BaseConnection internal constructor(val device: Device, protected
                 Request.RequestType.DISABLE_NOTIFICATION,
                 Request.RequestType.ENABLE_INDICATION,
                 Request.RequestType.DISABLE_INDICATION -> {
+                    if (releaseIfAborted(currentRequest!!)) { //不再写描述符
+                        return
+                    }
                     if (status != BluetoothGatt.GATT_SUCCESS) {
                         handleGattStatusFailed()
+                        executeNextRequest()
                     } else if (characteristic.service.uuid == pendingCharacteristic!!.service.uuid && characteristic.uuid == pendingCharacteristic!!.uuid) {
                         val isEnableNotify = currentRequest!!.type == Request.RequestType.ENABLE_NOTIFICATION
                         if (enableNotificationOrIndicationFail(isEnableNotify || currentRequest!!.type == Request.RequestType.ENABLE_INDICATION,
                                         isEnableNotify, characteristic)) {
+                            //描述符没有写出，不会再有回调
                             handleGattStatusFailed()
+                            executeNextRequest()
                         }
                     }
                 }
                 Request.RequestType.READ_DESCRIPTOR -> {
+                    if (releaseIfAborted(currentRequest!!)) {
+                        return
+                    }
                     if (status == BluetoothGatt.GATT_SUCCESS) {
-                        val request = currentRequest!!
-                        if (request.callback != null) {
-                            Ble.instance.getMethodPoster().post(request.callback, DescriptorReadCallback.getMethodInfo(device, request.tag, 
-                                    characteristic.service.uuid, characteristic.uuid, descriptor.uuid, descriptor.value))
-                        } else {
-                            onDescriptorRead(request.tag, descriptor)
+                        val value = descriptor.value
+                        val ttl = config.getReadCacheTtl(descriptor.uuid)
+                        if (ttl > 0) {
+                            readCache.put(characteristic.service.uuid, characteristic.uuid, descriptor.uuid, value, ttl)
                         }
+                        takeWaiters(currentRequest!!).forEach { notifyDescriptorRead(it, descriptor, value) }
                     } else {
                         handleGattStatusFailed()
                     }
@@ -245,29 +665,43 @@ abstract class BaseConnection internal constructor(val device: Device, protected
     }
 
     override fun onDescriptorWrite(gatt: BluetoothGatt?, descriptor: BluetoothGattDescriptor, status: Int) {
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            readCache.invalidate(descriptor.characteristic.service.uuid, descriptor.characteristic.uuid, descriptor.uuid)
+        }
         if (currentRequest != null) {
             if (currentRequest!!.type == Request.RequestType.ENABLE_NOTIFICATION || currentRequest!!.type == Request.RequestType.DISABLE_NOTIFICATION ||
                     currentRequest!!.type == Request.RequestType.ENABLE_INDICATION || currentRequest!!.type == Request.RequestType.DISABLE_INDICATION) {
-                val localDescriptor = getDescriptor(descriptor.characteristic.service.uuid, descriptor.characteristic.uuid, IConnection.clientCharacteristicConfig)
                 val request = currentRequest!!
+                if (releaseIfAborted(request)) {
+                    return
+                }
+                val localDescriptor = getDescriptor(descriptor.characteristic.service.uuid, descriptor.characteristic.uuid, IConnection.clientCharacteristicConfig)
                 if (status != BluetoothGatt.GATT_SUCCESS) {
                     handleGattStatusFailed()
                     localDescriptor?.value = currentRequest!!.value
                 } else {
                     val isEnabled = currentRequest!!.type == Request.RequestType.ENABLE_NOTIFICATION || currentRequest!!.type == Request.RequestType.ENABLE_INDICATION
-                    if (request.callback != null) {
-                        val ch = descriptor.characteristic
-                        if (request.type == Request.RequestType.ENABLE_NOTIFICATION || request.type == Request.RequestType.DISABLE_NOTIFICATION) {
-                            Ble.instance.getMethodPoster().post(request.callback, NotificationChangedCallback.getMethodInfo(device, 
-                                    request.tag, ch.service.uuid, ch.uuid, descriptor.uuid, isEnabled))
+                    if (config.isRestoreSubscriptions) {
+                        updateSubscription(request, isEnabled)
+                    }
+                    takeWaiters(request).forEach {
+                        val listener = it.resultListener
+                        if (listener != null) {
+                            listener.onRequestSucceeded(it, isEnabled)
+                        } else if (it.callback != null) {
+                            val ch = descriptor.characteristic
+                            if (it.type == Request.RequestType.ENABLE_NOTIFICATION || it.type == Request.RequestType.DISABLE_NOTIFICATION) {
+                                Ble.instance.getMethodPoster().post(it.callback, NotificationChangedCallback.getMethodInfo(device, 
+                                        it.tag, ch.service.uuid, ch.uuid, descriptor.uuid, isEnabled))
+                            } else {
+                                Ble.instance.getMethodPoster().post(it.callback, IndicationChangedCallback.getMethodInfo(device,
+                                        it.tag, ch.service.uuid, ch.uuid, descriptor.uuid, isEnabled))
+                            }
+                        } else if (it.type == Request.RequestType.ENABLE_NOTIFICATION || it.type == Request.RequestType.DISABLE_NOTIFICATION) {
+                            onNotificationChanged(it.tag, descriptor, isEnabled)
                         } else {
-                            Ble.instance.getMethodPoster().post(request.callback, IndicationChangedCallback.getMethodInfo(device,
-                                    request.tag, ch.service.uuid, ch.uuid, descriptor.uuid, isEnabled))
+                            onIndicationChanged(it.tag, descriptor, isEnabled)
                         }
-                    } else if (request.type == Request.RequestType.ENABLE_NOTIFICATION || request.type == Request.RequestType.DISABLE_NOTIFICATION) {
-                        onNotificationChanged(request.tag, descriptor, isEnabled)
-                    } else {
-                        onIndicationChanged(request.tag, descriptor, isEnabled)
                     }
                 }
                 executeNextRequest()
@@ -280,10 +714,23 @@ abstract class BaseConnection internal constructor(val device: Device, protected
             if (currentRequest!!.type == Request.RequestType.CHANGE_MTU) {
                 val request = currentRequest!!
                 if (status == BluetoothGatt.GATT_SUCCESS) {
-                    if (request.callback != null) {
-                        Ble.instance.getMethodPoster().post(request.callback, MtuChangedCallback.getMethodInfo(device, request.tag, mtu))
-                    } else {
-                        onMtuChanged(request.tag, mtu)
+                    //请求已取消时MTU也已生效
+                    this.mtu = mtu
+                    restoreMtu = mtu
+                }
+                if (releaseIfAborted(request)) {
+                    return
+                }
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    takeWaiters(request).forEach {
+                        val listener = it.resultListener
+                        if (listener != null) {
+                            listener.onRequestSucceeded(it, mtu)
+                        } else if (it.callback != null) {
+                            Ble.instance.getMethodPoster().post(it.callback, MtuChangedCallback.getMethodInfo(device, it.tag, mtu))
+                        } else {
+                            onMtuChanged(it.tag, mtu)
+                        }
                     }
                 } else {
                     handleGattStatusFailed()
@@ -304,16 +751,26 @@ abstract class BaseConnection internal constructor(val device: Device, protected
     private fun handlePhyReadOrUpdate(read: Boolean, txPhy: Int, rxPhy: Int, status: Int) {
         if (currentRequest != null) {
             if ((read && currentRequest!!.type == Request.RequestType.READ_PHY) || ((!read && currentRequest!!.type == Request.RequestType.SET_PREFERRED_PHY))) {
-                val request = currentRequest!!
+                if (releaseIfAborted(currentRequest!!)) {
+                    return
+                }
                 if (status == BluetoothGatt.GATT_SUCCESS) {
-                    if (request.callback != null) {
-                        if (read) {
-                            Ble.instance.getMethodPoster().post(request.callback, PhyReadCallback.getMethodInfo(device, request.tag, txPhy, rxPhy))
+                    if (!read) {
+                        restorePhy = currentRequest!!.value
+                    }
+                    takeWaiters(currentRequest!!).forEach {
+                        val listener = it.resultListener
+                        if (listener != null) {
+                            listener.onRequestSucceeded(it, intArrayOf(txPhy, rxPhy))
+                        } else if (it.callback != null) {
+                            if (read) {
+                                Ble.instance.getMethodPoster().post(it.callback, PhyReadCallback.getMethodInfo(device, it.tag, txPhy, rxPhy))
+                            } else {
+                                Ble.instance.getMethodPoster().post(it.callback, PhyUpdateCallback.getMethodInfo(device, it.tag, txPhy, rxPhy))
+                            }
                         } else {
-                            Ble.instance.getMethodPoster().post(request.callback, PhyUpdateCallback.getMethodInfo(device, request.tag, txPhy, rxPhy))
+                            onPhyReadOrUpdate(it.tag, read, txPhy, rxPhy)
                         }
-                    } else {
-                        onPhyReadOrUpdate(request.tag, read, txPhy, rxPhy)
                     }
                 } else {
                     handleGattStatusFailed()
@@ -323,6 +780,22 @@ abstract class BaseConnection internal constructor(val device: Device, protected
         }
     }
 
+    //已取消的请求等到GATT操作回调后才让出队列，回调的结果丢弃
+    private fun releaseIfAborted(request: Request): Boolean {
+        if (request.isAborted) {
+            executeNextRequest()
+            return true
+        }
+        return false
+    }
+
+    //正在执行的请求是否有已发出还未回调的GATT操作
+    private fun isGattOperationPending(request: Request): Boolean {
+        return if (request.type == Request.RequestType.WRITE_CHARACTERISTIC) {
+            request.isWaitingCallback || request.inFlightCount > 0
+        } else true
+    }
+
     //make sure currentRequest is not null
     private fun handleGattStatusFailed() {
         if (currentRequest != null) {
@@ -338,18 +811,34 @@ abstract class BaseConnection internal constructor(val device: Device, protected
     }
 
     private fun handleFailedCallback(request: Request, failType: Int, executeNext: Boolean) {
-        if (request.callback != null) {
-            if (request.callback is RequestFailedCallback) {
-                handleFailedCallback(request.callback, device, request.tag, request.type, failType, request.value)
-            }
+        request.closeSource()
+        if (request === currentRequest) {
+            request.failType = failType //完成时统计
         } else {
-            onRequestFialed(request.tag, request.type, failType, request.value)
+            metrics?.onFinished(request, failType)
+            Ble.instance.flightRecorder.record(device.addr, FlightRecorder.EVENT_REQUEST_FINISH, request.type.ordinal, failType)
         }
+        takeWaiters(request).forEach { notifyRequestFailed(it, failType) }
         if (executeNext) {
             executeNextRequest()
         }
     }
 
+    //调用前需确认请求未通知过结果，见[takeWaiters]
+    private fun notifyRequestFailed(request: Request, failType: Int) {
+        val value = request.originValue ?: request.value
+        val listener = request.resultListener
+        if (listener != null) {
+            listener.onRequestFailed(request, failType)
+        } else if (request.callback != null) {
+            if (request.callback is RequestFailedCallback) {
+                handleFailedCallback(request.callback, device, request.tag, request.type, failType, value)
+            }
+        } else {
+            onRequestFialed(request.tag, request.type, failType, value)
+        }
+    }
+
     private fun handleFailedCallback(callback: RequestFailedCallback, device: Device, tag: String, requestType: Request.RequestType, failType: Int, src: ByteArray?) {
         Ble.instance.getMethodPoster().post(callback, RequestFailedCallback.getMethodInfo(device, tag, requestType, failType, src))
     }
@@ -362,131 +851,342 @@ abstract class BaseConnection internal constructor(val device: Device, protected
      */
     @RequiresApi(Build.VERSION_CODES.LOLLIPOP)
     @JvmOverloads
-    fun changeMtu(tag: String, @IntRange(from = 23, to = 517) mtu: Int, callback: MtuChangedCallback? = null, priority: Int = 0) {
-        enqueue(Request.newChangeMtuRequest(tag, mtu, callback, priority))
+    fun changeMtu(tag: String, @IntRange(from = 23, to = 517) mtu: Int, callback: MtuChangedCallback? = null, priority: Int = 0): Request? {
+        return enqueue(Request.newChangeMtuRequest(tag, mtu, callback, priority))
     }
 
     /**
      * 读取蓝牙设备的特征，只有属性有read的才能成功
      */
     @JvmOverloads
-    fun readCharacteristic(tag: String, service: UUID, characteristic: UUID, callback: CharacteristicReadCallback? = null, priority: Int = 0) {
+    fun readCharacteristic(tag: String, service: UUID, characteristic: UUID, callback: CharacteristicReadCallback? = null, priority: Int = 0): Request? {
         if (checkUuidExists(tag, Request.RequestType.READ_CHARACTERISTIC, null, callback, service, characteristic)) {
-            enqueue(Request.newReadCharacteristicRequest(tag, service, characteristic, callback, priority))
+            return enqueue(Request.newReadCharacteristicRequest(tag, service, characteristic, callback, priority))
         }
+        return null
     }
 
     /**
      * 开启数据通知，特征属性中需要有notify
      */
     @JvmOverloads
-    fun enableNotification(tag: String, service: UUID, characteristic: UUID, callback: NotificationChangedCallback? = null, priority: Int = 0) {
+    fun enableNotification(tag: String, service: UUID, characteristic: UUID, callback: NotificationChangedCallback? = null, priority: Int = 0): Request? {
         if (checkUuidExists(tag, Request.RequestType.ENABLE_NOTIFICATION, null, callback, service, characteristic)) {
-            enqueue(Request.newEnableNotificationRequest(tag, service, characteristic, callback, priority))
+            return enqueue(Request.newEnableNotificationRequest(tag, service, characteristic, callback, priority))
         }
+        return null
     }
 
     @JvmOverloads
-    fun disableNotification(tag: String, service: UUID, characteristic: UUID, callback: NotificationChangedCallback? = null, priority: Int = 0) {
+    fun disableNotification(tag: String, service: UUID, characteristic: UUID, callback: NotificationChangedCallback? = null, priority: Int = 0): Request? {
         if (checkUuidExists(tag, Request.RequestType.DISABLE_NOTIFICATION, null, callback, service, characteristic)) {
-            enqueue(Request.newDisableNotificationRequest(tag, service, characteristic, callback, priority))
+            return enqueue(Request.newDisableNotificationRequest(tag, service, characteristic, callback, priority))
         }
+        return null
     }
 
     @JvmOverloads
-    fun enableIndication(tag: String, service: UUID, characteristic: UUID, callback: IndicationChangedCallback? = null, priority: Int = 0) {
+    fun enableIndication(tag: String, service: UUID, characteristic: UUID, callback: IndicationChangedCallback? = null, priority: Int = 0): Request? {
         if (checkUuidExists(tag, Request.RequestType.ENABLE_INDICATION, null, callback, service, characteristic)) {
-            enqueue(Request.newEnableIndicationRequest(tag, service, characteristic, callback, priority))
+            return enqueue(Request.newEnableIndicationRequest(tag, service, characteristic, callback, priority))
         }
+        return null
     }
 
     @JvmOverloads
-    fun disableIndication(tag: String, service: UUID, characteristic: UUID, callback: IndicationChangedCallback? = null, priority: Int = 0) {
+    fun disableIndication(tag: String, service: UUID, characteristic: UUID, callback: IndicationChangedCallback? = null, priority: Int = 0): Request? {
         if (checkUuidExists(tag, Request.RequestType.DISABLE_INDICATION, null, callback, service, characteristic)) {
-            enqueue(Request.newDisableIndicationRequest(tag, service, characteristic, callback, priority))
+            return enqueue(Request.newDisableIndicationRequest(tag, service, characteristic, callback, priority))
         }
+        return null
     }
 
     /**
      * Reads the value for a given descriptor from the associated remote device.
      */
     @JvmOverloads
-    fun readDescriptor(tag: String, service: UUID, characteristic: UUID, descriptor: UUID, callback: DescriptorReadCallback? = null, priority: Int = 0) {
+    fun readDescriptor(tag: String, service: UUID, characteristic: UUID, descriptor: UUID, callback: DescriptorReadCallback? = null, priority: Int = 0): Request? {
         if (checkUuidExists(tag, Request.RequestType.READ_DESCRIPTOR, null, callback, service, characteristic)) {
-            enqueue(Request.newReadDescriptorRequest(tag, service, characteristic, descriptor, callback, priority))
+            return enqueue(Request.newReadDescriptorRequest(tag, service, characteristic, descriptor, callback, priority))
         }
+        return null
     }
 
     /**
      * Writes a given characteristic and its values to the associated remote device.
      */
     @JvmOverloads
-    fun writeCharacteristic(tag: String, service: UUID, characteristic: UUID, value: ByteArray?, callback: CharacteristicWriteCallback? = null, priority: Int = 0) {
+    fun writeCharacteristic(tag: String, service: UUID, characteristic: UUID, value: ByteArray?, callback: CharacteristicWriteCallback? = null, priority: Int = 0): Request? {
         if (value == null || value.isEmpty()) {
             if (callback != null) {
                 handleFailedCallback(callback, device, tag, Request.RequestType.WRITE_CHARACTERISTIC, IConnection.REQUEST_FAIL_TYPE_VALUE_IS_NULL_OR_EMPTY, value)
             } else {
                 handleFailedCallback(tag, Request.RequestType.WRITE_CHARACTERISTIC, IConnection.REQUEST_FAIL_TYPE_VALUE_IS_NULL_OR_EMPTY, value, false)
             }
-            return
+            return null
         } else if (checkUuidExists(tag, Request.RequestType.WRITE_CHARACTERISTIC, value, callback, service, characteristic)) {
-            enqueue(Request.newWriteCharacteristicRequest(tag, service, characteristic, value, callback, priority))
+            return enqueue(Request.newWriteCharacteristicRequest(tag, service, characteristic, value, callback, priority))
         }
+        return null
     }
 
     /**
-     * 读取已连接的蓝牙设备的信号强度
+     * 从数据源流式写入特征。写入时按包从数据源读取，内存占用不随数据大小增长，写入进度及结果通过回调通知。
+     * 写入结束后数据源会被关闭
      */
     @JvmOverloads
-    fun readRssi(tag: String, callback: RemoteRssiReadCallback? = null, priority: Int = 0) {
-        enqueue(Request.newReadRssiRequest(tag, callback, priority))
+    fun writeCharacteristic(tag: String, service: UUID, characteristic: UUID, source: WriteSource, callback: StreamWriteCallback, priority: Int = 0): Request? {
+        if (source.length() == 0L) {
+            source.close()
+            handleFailedCallback(callback, device, tag, Request.RequestType.WRITE_CHARACTERISTIC, IConnection.REQUEST_FAIL_TYPE_VALUE_IS_NULL_OR_EMPTY, null)
+        } else if (checkUuidExists(tag, Request.RequestType.WRITE_CHARACTERISTIC, null, callback, service, characteristic)) {
+            return enqueue(Request.newWriteStreamRequest(tag, service, characteristic, source, callback, priority))
+        } else {
+            source.close()
+        }
+        return null
     }
 
     /**
-     * Read the current transmitter PHY and receiver PHY of the connection. The values are returned
+     * 使用句柄读取特征
      */
-    @RequiresApi(Build.VERSION_CODES.O)
     @JvmOverloads
-    fun readPhy(tag: String, callback: PhyReadCallback? = null, priority: Int = 0) {
-        enqueue(Request.newReadPhyRequest(tag, callback, priority))
+    fun readCharacteristic(tag: String, handle: CharacteristicHandle, callback: CharacteristicReadCallback? = null, priority: Int = 0): Request? {
+        if (checkHandleValid(tag, Request.RequestType.READ_CHARACTERISTIC, null, callback, handle)) {
+            return enqueue(Request.newReadCharacteristicRequest(tag, handle.service, handle.uuid, callback, priority).also { it.handle = handle })
+        }
+        return null
     }
 
     /**
-     * Set the preferred connection PHY for this app. Please note that this is just a
-     * recommendation, whether the PHY change will happen depends on other applications preferences,
-     * local and remote controller capabilities. Controller can override these settings.
-     *
-     * @param txPhy preferred transmitter PHY. Bitwise OR of any of [BluetoothDevice.PHY_LE_1M_MASK], [BluetoothDevice.PHY_LE_2M_MASK], and [BluetoothDevice.PHY_LE_CODED_MASK].
-     * @param rxPhy preferred receiver PHY. Bitwise OR of any of [BluetoothDevice.PHY_LE_1M_MASK], [BluetoothDevice.PHY_LE_2M_MASK], and [BluetoothDevice.PHY_LE_CODED_MASK].
-     * @param phyOptions preferred coding to use when transmitting on the LE Coded PHY. Can be one
-     * of [BluetoothDevice.PHY_OPTION_NO_PREFERRED], [BluetoothDevice.PHY_OPTION_S2] or
-     * [BluetoothDevice.PHY_OPTION_S8]
+     * 使用句柄开启数据通知
      */
-    @RequiresApi(Build.VERSION_CODES.O)
     @JvmOverloads
-    fun setPreferredPhy(tag: String, txPhy: Int, rxPhy: Int, phyOptions: Int, callback: PhyUpdateCallback? = null, priority: Int = 0) {
-        enqueue(Request.newSetPreferredPhyRequest(tag, txPhy, rxPhy, phyOptions, callback, priority))
+    fun enableNotification(tag: String, handle: CharacteristicHandle, callback: NotificationChangedCallback? = null, priority: Int = 0): Request? {
+        if (checkHandleValid(tag, Request.RequestType.ENABLE_NOTIFICATION, null, callback, handle)) {
+            return enqueue(Request.newEnableNotificationRequest(tag, handle.service, handle.uuid, callback, priority).also { it.handle = handle })
+        }
+        return null
     }
 
-    //检查uuid是否存在
-    private fun checkUuidExists(tag: String, requestType: Request.RequestType, src: ByteArray?, callback: Any?, vararg uuids: UUID): Boolean {
-        return when {
-            uuids.isNotEmpty() -> {
-                checkServiceExists(uuids[0], tag, requestType, src, callback)
-            }
-            uuids.size > 1 -> {
-                checkCharacteristicExists(uuids[0], uuids[1], tag, requestType, src, callback)
-            }
-            uuids.size > 2 -> {
-                checkDescriptoreExists(uuids[0], uuids[1], uuids[2], tag, requestType, src, callback)
-            }
-            else -> false
+    @JvmOverloads
+    fun disableNotification(tag: String, handle: CharacteristicHandle, callback: NotificationChangedCallback? = null, priority: Int = 0): Request? {
+        if (checkHandleValid(tag, Request.RequestType.DISABLE_NOTIFICATION, null, callback, handle)) {
+            return enqueue(Request.newDisableNotificationRequest(tag, handle.service, handle.uuid, callback, priority).also { it.handle = handle })
         }
+        return null
     }
 
-    //检查服务是否存在
-    private fun checkServiceExists(uuid: UUID, tag: String, requestType: Request.RequestType, src: ByteArray?, callback: Any?): Boolean {
-        return if (getService(uuid) == null) {
+    @JvmOverloads
+    fun enableIndication(tag: String, handle: CharacteristicHandle, callback: IndicationChangedCallback? = null, priority: Int = 0): Request? {
+        if (checkHandleValid(tag, Request.RequestType.ENABLE_INDICATION, null, callback, handle)) {
+            return enqueue(Request.newEnableIndicationRequest(tag, handle.service, handle.uuid, callback, priority).also { it.handle = handle })
+        }
+        return null
+    }
+
+    @JvmOverloads
+    fun disableIndication(tag: String, handle: CharacteristicHandle, callback: IndicationChangedCallback? = null, priority: Int = 0): Request? {
+        if (checkHandleValid(tag, Request.RequestType.DISABLE_INDICATION, null, callback, handle)) {
+            return enqueue(Request.newDisableIndicationRequest(tag, handle.service, handle.uuid, callback, priority).also { it.handle = handle })
+        }
+        return null
+    }
+
+    /**
+     * 使用句柄读取描述符
+     */
+    @JvmOverloads
+    fun readDescriptor(tag: String, handle: DescriptorHandle, callback: DescriptorReadCallback? = null, priority: Int = 0): Request? {
+        val c = handle.characteristic
+        if (checkHandleValid(tag, Request.RequestType.READ_DESCRIPTOR, null, callback, c)) {
+            return enqueue(Request.newReadDescriptorRequest(tag, c.service, c.uuid, handle.uuid, callback, priority).also { it.handle = c })
+        }
+        return null
+    }
+
+    /**
+     * 使用句柄写入特征
+     */
+    @JvmOverloads
+    fun writeCharacteristic(tag: String, handle: CharacteristicHandle, value: ByteArray?, callback: CharacteristicWriteCallback? = null, priority: Int = 0): Request? {
+        if (value == null || value.isEmpty()) {
+            if (callback != null) {
+                handleFailedCallback(callback, device, tag, Request.RequestType.WRITE_CHARACTERISTIC, IConnection.REQUEST_FAIL_TYPE_VALUE_IS_NULL_OR_EMPTY, value)
+            } else {
+                handleFailedCallback(tag, Request.RequestType.WRITE_CHARACTERISTIC, IConnection.REQUEST_FAIL_TYPE_VALUE_IS_NULL_OR_EMPTY, value, false)
+            }
+        } else if (checkHandleValid(tag, Request.RequestType.WRITE_CHARACTERISTIC, value, callback, handle)) {
+            return enqueue(Request.newWriteCharacteristicRequest(tag, handle.service, handle.uuid, value, callback, priority).also { it.handle = handle })
+        }
+        return null
+    }
+
+    /**
+     * 暂停正在进行的写请求，暂停期间不计请求超时，队列中的其他请求也会等待
+     *
+     * @return 当前请求是指定tag的写请求并且未暂停时返回true
+     */
+    fun pauseWrite(tag: String): Boolean {
+        synchronized(this) {
+            val request = currentRequest
+            if (request == null || request.type != Request.RequestType.WRITE_CHARACTERISTIC || request.tag != tag || request.isPaused || request.isAborted) {
+                return false
+            }
+            request.pause()
+            connHandler.removeMessages(MSG_REQUEST_TIMEOUT)
+            connHandler.removeMessages(MSG_WRITE_PACKAGE)
+            return true
+        }
+    }
+
+    /**
+     * 恢复被暂停的写请求
+     *
+     * @return 当前请求是指定tag的写请求并且已暂停时返回true
+     */
+    fun resumeWrite(tag: String): Boolean {
+        synchronized(this) {
+            val request = currentRequest
+            if (request == null || request.type != Request.RequestType.WRITE_CHARACTERISTIC || request.tag != tag || !request.isPaused || request.isAborted) {
+                return false
+            }
+            request.resume()
+            resetRequestTimeout(request)
+            if (!request.isWaitingCallback) { //有包未回调时，等回调后再发
+                writeNextPackage(request)
+            }
+            return true
+        }
+    }
+
+    /**
+     * 执行批处理。批处理中的请求按顺序连续执行，中间不会插入其他请求，某一步失败后不再执行后面的步骤。
+     * 各步骤的结果不单独回调，全部结束后通过[callback]一次通知
+     *
+     * @param tag 批处理中所有请求使用的tag
+     * @param priority 批处理在请求队列中的优先级，开始执行后不受其他请求的优先级影响
+     */
+    @JvmOverloads
+    fun executeBatch(tag: String, batch: RequestBatch, callback: BatchCallback, priority: Int = 0) {
+        val requests = batch.createRequests(tag, priority)
+        if (requests.isEmpty()) {
+            Ble.instance.getMethodPoster().post(callback, BatchCallback.getMethodInfo(device, tag, true, emptyList()))
+            return
+        }
+        executeChain(requests, BatchResultListener(tag, callback, requests.size))
+    }
+
+    //将请求串联后提交，前一个结束后紧接着执行下一个
+    private fun executeChain(requests: List<Request>, listener: RequestResultListener) {
+        requests.forEachIndexed { i, request ->
+            request.resultListener = listener
+            if (i > 0) {
+                requests[i - 1].next = request
+            }
+        }
+        enqueue(requests[0])
+    }
+
+    //收集批处理各步骤的结果，结束后一次回调。结束后再收到的结果忽略
+    private inner class BatchResultListener(private val tag: String, private val callback: BatchCallback, size: Int) : RequestResultListener {
+        private val results = ArrayList<RequestBatch.StepResult>(size)
+        private var isFinished = false
+
+        @Synchronized
+        override fun onRequestSucceeded(request: Request, value: Any?) {
+            if (isFinished) {
+                return
+            }
+            results.add(RequestBatch.StepResult(results.size, request.type, request.service, request.characteristic, request.descriptor,
+                    true, 0, value))
+            if (request.next == null) {
+                finish(true)
+            }
+        }
+
+        @Synchronized
+        override fun onRequestFailed(request: Request, failType: Int) {
+            request.next = null
+            if (isFinished) {
+                return
+            }
+            results.add(RequestBatch.StepResult(results.size, request.type, request.service, request.characteristic, request.descriptor,
+                    false, failType, null))
+            finish(false)
+        }
+
+        private fun finish(isSuccess: Boolean) {
+            isFinished = true
+            Ble.instance.getMethodPoster().post(callback, BatchCallback.getMethodInfo(device, tag, isSuccess, results))
+        }
+    }
+
+    /**
+     * 读取已连接的蓝牙设备的信号强度
+     */
+    @JvmOverloads
+    fun readRssi(tag: String, callback: RemoteRssiReadCallback? = null, priority: Int = 0): Request? {
+        return enqueue(Request.newReadRssiRequest(tag, callback, priority))
+    }
+
+    /**
+     * Read the current transmitter PHY and receiver PHY of the connection. The values are returned
+     */
+    @RequiresApi(Build.VERSION_CODES.O)
+    @JvmOverloads
+    fun readPhy(tag: String, callback: PhyReadCallback? = null, priority: Int = 0): Request? {
+        return enqueue(Request.newReadPhyRequest(tag, callback, priority))
+    }
+
+    /**
+     * Set the preferred connection PHY for this app. Please note that this is just a
+     * recommendation, whether the PHY change will happen depends on other applications preferences,
+     * local and remote controller capabilities. Controller can override these settings.
+     *
+     * @param txPhy preferred transmitter PHY. Bitwise OR of any of [BluetoothDevice.PHY_LE_1M_MASK], [BluetoothDevice.PHY_LE_2M_MASK], and [BluetoothDevice.PHY_LE_CODED_MASK].
+     * @param rxPhy preferred receiver PHY. Bitwise OR of any of [BluetoothDevice.PHY_LE_1M_MASK], [BluetoothDevice.PHY_LE_2M_MASK], and [BluetoothDevice.PHY_LE_CODED_MASK].
+     * @param phyOptions preferred coding to use when transmitting on the LE Coded PHY. Can be one
+     * of [BluetoothDevice.PHY_OPTION_NO_PREFERRED], [BluetoothDevice.PHY_OPTION_S2] or
+     * [BluetoothDevice.PHY_OPTION_S8]
+     */
+    @RequiresApi(Build.VERSION_CODES.O)
+    @JvmOverloads
+    fun setPreferredPhy(tag: String, txPhy: Int, rxPhy: Int, phyOptions: Int, callback: PhyUpdateCallback? = null, priority: Int = 0): Request? {
+        return enqueue(Request.newSetPreferredPhyRequest(tag, txPhy, rxPhy, phyOptions, callback, priority))
+    }
+
+    //检查uuid是否存在
+    private fun checkUuidExists(tag: String, requestType: Request.RequestType, src: ByteArray?, callback: Any?, vararg uuids: UUID): Boolean {
+        return when {
+            uuids.isNotEmpty() -> {
+                checkServiceExists(uuids[0], tag, requestType, src, callback)
+            }
+            uuids.size > 1 -> {
+                checkCharacteristicExists(uuids[0], uuids[1], tag, requestType, src, callback)
+            }
+            uuids.size > 2 -> {
+                checkDescriptoreExists(uuids[0], uuids[1], uuids[2], tag, requestType, src, callback)
+            }
+            else -> false
+        }
+    }
+
+    //检查句柄是否属于当前的索引
+    private fun checkHandleValid(tag: String, requestType: Request.RequestType, src: ByteArray?, callback: Any?, handle: CharacteristicHandle): Boolean {
+        return if (gattIndex?.generation != handle.generation) {
+            if (callback == null) {
+                handleFailedCallback(tag, requestType, IConnection.REQUEST_FAIL_TYPE_NULL_CHARACTERISTIC, src, false)
+            } else if (callback is RequestFailedCallback) {
+                handleFailedCallback(callback, device, tag, requestType, IConnection.REQUEST_FAIL_TYPE_NULL_CHARACTERISTIC, src)
+            }
+            false
+        } else true
+    }
+
+    //检查服务是否存在
+    private fun checkServiceExists(uuid: UUID, tag: String, requestType: Request.RequestType, src: ByteArray?, callback: Any?): Boolean {
+        return if (getService(uuid) == null) {
             if (callback == null) {
                 handleFailedCallback(tag, requestType, IConnection.REQUEST_FAIL_TYPE_NULL_SERVICE, src, false)
             } else if (callback is RequestFailedCallback) {
@@ -527,52 +1227,308 @@ abstract class BaseConnection internal constructor(val device: Device, protected
         } else false
     }
 
-    private fun enqueue(request: Request) {
+    /**
+     * 以内部监听接收结果的方式提交请求，结果不经过[MethodPoster]
+     */
+    internal fun enqueue(request: Request, listener: RequestResultListener): Request? {
+        request.resultListener = listener
+        return enqueue(request)
+    }
+
+    //请求被接受时返回请求本身，可用于取消
+    private fun enqueue(request: Request): Request? {
         if (isReleased) {
             handleFailedCallback(request, IConnection.REQUEST_FAIL_TYPE_CONNECTION_RELEASED, false)
+            return null
         } else {
             synchronized(this) {
+                if (completeFromCache(request)) {
+                    return request
+                }
+                metrics?.onEnqueued(request, requestQueue.size + 1)
+                addToTagIndex(request)
+                //合并到的写请求还在排队，已计入待完成的写
+                if (coalesce(request)) {
+                    return request
+                }
+                beginWrite(request)
                 if (currentRequest == null) {
                     executeRequest(request)
                 } else {
-                    //根据优化级将请求插入队列中
-                    var index = -1
-                    run {
-                        requestQueue.forEachIndexed { i, req ->
-                            if (req.priority >= request.priority) {
-                                if (i < requestQueue.size - 1) {
-                                    if (requestQueue[i + 1].priority < request.priority) {
-                                        index = i + 1
-                                        return@run
-                                    }
-                                } else {
-                                    index = i + 1
-                                }
-                            }
+                    //根据优化级将请求插入队列中，同优先级先进先出
+                    requestQueue.add(request)
+                }
+                return request
+            }
+        }
+    }
+
+    private fun addToTagIndex(request: Request) {
+        var set = tagIndex[request.tag]
+        if (set == null) {
+            set = LinkedHashSet()
+            tagIndex[request.tag] = set
+        }
+        set.add(request)
+    }
+
+    private fun removeFromTagIndex(request: Request) {
+        val set = tagIndex[request.tag] ?: return
+        set.remove(request)
+        if (set.isEmpty()) {
+            tagIndex.remove(request.tag)
+        }
+        connHandler.removeMessages(MSG_REQUEST_DEADLINE, request)
+    }
+
+    //请求是否还未完成
+    private fun isPending(request: Request) = tagIndex[request.tag]?.contains(request) == true
+
+    /**
+     * 为请求设置期限，从调用时开始计时，包括在队列中等待的时间。到期时请求还未完成则以[IConnection.REQUEST_FAIL_TYPE_REQUEST_TIMEOUT]失败，
+     * 并从队列中移除。与[ConnectionConfig.requestTimeoutMillis]同时起作用，先到者生效
+     *
+     * @param request 请求方法返回的请求
+     * @return 请求未完成时返回true
+     */
+    fun setDeadline(request: Request, timeoutMillis: Long): Boolean {
+        synchronized(this) {
+            if (!isPending(request)) {
+                return false
+            }
+            connHandler.removeMessages(MSG_REQUEST_DEADLINE, request)
+            connHandler.sendMessageDelayed(Message.obtain(connHandler, MSG_REQUEST_DEADLINE, request), timeoutMillis)
+            return true
+        }
+    }
+
+    /**
+     * 取消请求，请求以[IConnection.REQUEST_FAIL_TYPE_REQUEST_CANCELLED]失败。正在执行的请求取消后，等已发出的GATT操作回调或者超时后
+     * 再执行下一个请求，回调的结果丢弃。合并到此请求的其他请求不受影响，仍然等待结果
+     *
+     * @param request 请求方法返回的请求
+     * @return 请求未完成时返回true
+     */
+    fun cancelRequest(request: Request): Boolean {
+        synchronized(this) {
+            if (!isPending(request)) {
+                return false
+            }
+            abortRequest(request, IConnection.REQUEST_FAIL_TYPE_REQUEST_CANCELLED)
+            return true
+        }
+    }
+
+    /**
+     * 取消指定tag的所有未完成请求
+     *
+     * @return 取消的请求数量
+     */
+    fun cancelRequests(tag: String): Int {
+        synchronized(this) {
+            val set = tagIndex[tag] ?: return 0
+            var count = 0
+            ArrayList(set).forEach {
+                //可能在取消前面的请求时已结束
+                if (isPending(it)) {
+                    abortRequest(it, IConnection.REQUEST_FAIL_TYPE_REQUEST_CANCELLED)
+                    count++
+                }
+            }
+            return count
+        }
+    }
+
+    //终止未完成的请求，无论是在排队、正在执行还是已被合并
+    private fun abortRequest(request: Request, failType: Int) {
+        val target = request.mergeTarget
+        val merged = request.mergedRequests
+        when {
+            target != null -> {
+                target.mergedRequests?.remove(request)
+                request.mergeTarget = null
+                detachRequest(request, failType)
+                //等待结果的都已取消，目标请求也不再需要
+                if (target.isFinished && target.mergedRequests.isNullOrEmpty()) {
+                    abortRequest(target, failType)
+                }
+            }
+            merged != null && merged.isNotEmpty() -> {
+                //还有合并的请求在等待结果，请求照常执行，只让取消的请求失败
+                detachRequest(request, failType)
+            }
+            request.isQueued -> {
+                requestQueue.remove(request)
+                endWrite(request)
+                handleFailedCallback(request, failType, false)
+            }
+            request === currentRequest -> {
+                handleFailedCallback(request, failType, false)
+                //协议栈还在执行时不能开始下一个请求，否则会失败，迟到的回调也会被当成下一个请求的结果
+                request.isAborted = true
+                if (!isGattOperationPending(request)) {
+                    executeNextRequest()
+                }
+            }
+        }
+    }
+
+    //让请求单独失败，不影响与它合并的请求
+    private fun detachRequest(request: Request, failType: Int) {
+        request.isFinished = true
+        removeFromTagIndex(request)
+        notifyRequestFailed(request, failType)
+    }
+
+    /**
+     * 按配置尝试将请求合并到已有的请求中，合并成功返回true
+     */
+    private fun coalesce(request: Request): Boolean {
+        if (request.resultListener != null) { //批处理中的请求不参与合并
+            return false
+        }
+        when (request.type) {
+            Request.RequestType.READ_CHARACTERISTIC, Request.RequestType.READ_DESCRIPTOR,
+            Request.RequestType.READ_RSSI, Request.RequestType.READ_PHY -> {
+                if (!config.isCoalesceReads) {
+                    return false
+                }
+                val key = "${request.type}:${request.service}:${request.characteristic}:${request.descriptor}"
+                val target = mergeIndex[key]
+                //还在排队或者正在执行，结果还未回调。批处理中的请求不作为合并目标
+                if (target != null && isMergeTarget(target) && (target.isQueued || target === currentRequest)) {
+                    addMergedRequest(target, request)
+                    mergedReadCount++
+                    return true
+                }
+                request.mergeKey = key
+                mergeIndex[key] = request
+            }
+            Request.RequestType.WRITE_CHARACTERISTIC -> {
+                if (!config.isCoalesceWrites || request.source != null) {
+                    return false
+                }
+                //只合并到同一优先级的最后一个请求，保证写入顺序不变。批处理中的请求不作为合并目标，避免插入到后续步骤之前
+                val target = requestQueue.peekLast(request.priority)
+                if (target != null && isMergeTarget(target) && target.type == Request.RequestType.WRITE_CHARACTERISTIC && target.source == null &&
+                        target.service == request.service && target.characteristic == request.characteristic) {
+                    val targetValue = target.value!!
+                    val value = request.value!!
+                    if (targetValue.size + value.size <= packageSize) {
+                        if (target.originValue == null) {
+                            target.originValue = targetValue
                         }
+                        val merged = targetValue.copyOf(targetValue.size + value.size)
+                        System.arraycopy(value, 0, merged, targetValue.size, value.size)
+                        target.value = merged
+                        addMergedRequest(target, request)
+                        mergedWriteCount++
+                        return true
                     }
-                    when {
-                        index == -1 -> requestQueue.add(0, request)
-                        index >= requestQueue.size -> requestQueue.add(request)
-                        else -> requestQueue.add(index, request)
-                    }
                 }
             }
+            else -> {
+            }
+        }
+        return false
+    }
+
+    //写请求排队及执行期间，特征值的读结果不缓存也不从缓存读取，排在写之后的读不会读到写之前的值
+    private fun beginWrite(request: Request) {
+        if (request.type == Request.RequestType.WRITE_CHARACTERISTIC && !request.isWritePending && request.service != null && request.characteristic != null) {
+            request.isWritePending = true
+            readCache.beginWrite(request.service, request.characteristic)
+        }
+    }
+
+    private fun endWrite(request: Request) {
+        if (request.isWritePending && request.service != null && request.characteristic != null) {
+            request.isWritePending = false
+            readCache.endWrite(request.service, request.characteristic)
+        }
+    }
+
+    private fun isMergeTarget(target: Request): Boolean {
+        return target.resultListener == null && target.next == null
+    }
+
+    private fun addMergedRequest(target: Request, request: Request) {
+        request.mergeTarget = target
+        var list = target.mergedRequests
+        if (list == null) {
+            list = ArrayList()
+            target.mergedRequests = list
+        }
+        list.add(request)
+    }
+
+    /**
+     * 取出需要回调结果的所有请求，包括请求本身及合并到它的请求，已通知过结果的除外。取出后不再接受合并
+     */
+    private fun takeWaiters(request: Request): List<Request> {
+        synchronized(this) {
+            val key = request.mergeKey
+            if (key != null) {
+                if (mergeIndex[key] === request) {
+                    mergeIndex.remove(key)
+                }
+                request.mergeKey = null
+            }
+            removeFromTagIndex(request)
+            val list = request.mergedRequests
+            if (list == null) {
+                if (request.isFinished) {
+                    return emptyList()
+                }
+                request.isFinished = true
+                return Collections.singletonList(request)
+            }
+            request.mergedRequests = null
+            list.forEach {
+                it.mergeTarget = null
+                it.isFinished = true
+                removeFromTagIndex(it)
+            }
+            if (!request.isFinished) {
+                request.isFinished = true
+                list.add(0, request)
+            }
+            return list
         }
     }
 
     private fun executeNextRequest() {
         synchronized(this) {
             connHandler.removeMessages(MSG_REQUEST_TIMEOUT)
-            if (requestQueue.isEmpty()) {
+            connHandler.removeMessages(MSG_WRITE_PACKAGE)
+            //批处理中的请求成功后紧接着执行下一步
+            val current = currentRequest
+            if (current != null) {
+                removeFromTagIndex(current)
+                endWrite(current)
+                metrics?.onFinished(current, current.failType)
+                Ble.instance.flightRecorder.record(device.addr, FlightRecorder.EVENT_REQUEST_FINISH, current.type.ordinal, current.failType)
+            }
+            val next = current?.next
+            val request = if (next != null) {
+                current.next = null
+                addToTagIndex(next)
+                beginWrite(next)
+                //后续步骤不经过enqueue，在此时入队
+                metrics?.onEnqueued(next, requestQueue.size + 1)
+                next
+            } else {
+                requestQueue.poll()
+            }
+            if (request == null) {
                 currentRequest = null
             } else {
-                executeRequest(requestQueue.removeAt(0))
+                executeRequest(request)
             }
         }
     }
 
-    private class ConnHandler internal constructor(connection: BaseConnection) : Handler(Looper.getMainLooper()) {
+    private class ConnHandler internal constructor(connection: BaseConnection, looper: Looper) : Handler(looper) {
         private val weakRef: WeakReference<BaseConnection> = WeakReference(connection)
 
         override fun handleMessage(msg: Message) {
@@ -582,10 +1538,25 @@ abstract class BaseConnection internal constructor(val device: Device, protected
                     MSG_REQUEST_TIMEOUT -> {
                         val request = msg.obj as Request
                         if (connection.currentRequest != null && connection.currentRequest === request) {
-                            connection.handleFailedCallback(request, IConnection.REQUEST_FAIL_TYPE_REQUEST_TIMEOUT, false)
+                            Ble.instance.flightRecorder.record(connection.device.addr, FlightRecorder.EVENT_REQUEST_TIMEOUT, request.type.ordinal)
+                            if (!request.isAborted) { //已取消的请求已通知过结果，只让出队列
+                                if (request.type == Request.RequestType.WRITE_CHARACTERISTIC) {
+                                    connection.updatePacing(request, false)
+                                }
+                                connection.handleFailedCallback(request, IConnection.REQUEST_FAIL_TYPE_REQUEST_TIMEOUT, false)
+                            }
                             connection.executeNextRequest()
                         }
                     }
+                    MSG_WRITE_PACKAGE -> connection.writeNextPackage(msg.obj as Request)
+                    MSG_REQUEST_DEADLINE -> {
+                        val request = msg.obj as Request
+                        synchronized(connection) {
+                            if (connection.isPending(request)) {
+                                connection.abortRequest(request, IConnection.REQUEST_FAIL_TYPE_REQUEST_TIMEOUT)
+                            }
+                        }
+                    }
                 }
                 connection.handleMsg(msg)
             }
@@ -596,6 +1567,8 @@ abstract class BaseConnection internal constructor(val device: Device, protected
 
     private fun executeRequest(request: Request) {
         currentRequest = request
+        metrics?.onExecute(request)
+        Ble.instance.flightRecorder.record(device.addr, FlightRecorder.EVENT_REQUEST_START, request.type.ordinal, 0, request.value)
         connHandler.sendMessageDelayed(Message.obtain(connHandler, MSG_REQUEST_TIMEOUT, request), config.requestTimeoutMillis.toLong())
         if (bluetoothAdapter!!.isEnabled) {
             if (bluetoothGatt != null) {
@@ -607,9 +1580,15 @@ abstract class BaseConnection internal constructor(val device: Device, protected
                     }
                     Request.RequestType.SET_PREFERRED_PHY -> executeSetPreferredPhy(request)
                     else -> {
-                        val gattService = bluetoothGatt!!.getService(request.service)
+                        val handle = request.handle
+                        val gattService = if (handle != null && handle.generation == gattIndex?.generation) {
+                            handle.characteristic.service
+                        } else {
+                            request.handle = null
+                            getService(request.service!!)
+                        }
                         if (gattService != null) {
-                            val characteristic = gattService.getCharacteristic(request.characteristic)
+                            val characteristic = request.handle?.characteristic ?: getCharacteristic(request.service!!, request.characteristic!!)
                             if (characteristic != null) {
                                 when (request.type) {
                                     Request.RequestType.ENABLE_NOTIFICATION,
@@ -668,76 +1647,379 @@ abstract class BaseConnection internal constructor(val device: Device, protected
     }
 
     private fun executeWriteCharacteristic(characteristic: BluetoothGattCharacteristic, request: Request) {
-        try {
-            request.waitWriteResult = config.isWaitWriteResult
-            request.writeDelay = config.packageWriteDelayMillis
-            val requestWriteDelayMillis = config.requestWriteDelayMillis
-            val reqDelay = if (requestWriteDelayMillis > 0) requestWriteDelayMillis else request.writeDelay
-            if (reqDelay > 0) {
-                Thread.sleep(reqDelay.toLong())
-                if (request != currentRequest) {
-                    return
+        request.waitWriteResult = config.isWaitWriteResult
+        request.writeDelay = config.packageWriteDelayMillis
+        request.gattCharacteristic = characteristic
+        val writeType = GattIndex.resolveWriteType(config, characteristic)
+        request.writeType = writeType
+        if (config.writeWindowSize > 0 && writeType == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE) {
+            request.writeWindow = config.writeWindowSize
+            request.waitWriteResult = false
+            request.writeDelay = 0
+        }
+        if (config.isAdaptiveWritePacing) {
+            val pacer = writePacer ?: WritePacer(config.packageWriteDelayMillis, config.writeWindowSize).also { writePacer = it }
+            if (request.writeWindow > 0) {
+                request.writeWindow = pacer.windowSize
+            } else {
+                request.writeDelay = pacer.packageDelayMillis
+            }
+        }
+        request.packageSize = packageSize
+        request.writeOffset = 0
+        request.startTime = System.nanoTime()
+        if (request.source != null) {
+            //第一包在后台读取，与请求间隔同时进行
+            readSourcePackage(request)
+        }
+        val requestWriteDelayMillis = config.requestWriteDelayMillis
+        val reqDelay = if (requestWriteDelayMillis > 0) requestWriteDelayMillis else request.writeDelay
+        if (reqDelay > 0) {
+            //通过消息延时发送第一包，不阻塞调用线程
+            connHandler.sendMessageDelayed(Message.obtain(connHandler, MSG_WRITE_PACKAGE, request), reqDelay.toLong())
+        } else {
+            writeNextPackage(request)
+        }
+    }
+
+    /**
+     * 发送下一包。不等待写入结果时，无包间隔则连续发送，有包间隔则通过消息延时发送再下一包
+     */
+    private fun writeNextPackage(request: Request) {
+        if (request.writeWindow > 0) {
+            writeWindowPackages(request)
+            return
+        }
+        synchronized(this) {
+            try {
+                while (request === currentRequest && !request.isPaused && !request.isAborted) {
+                    val characteristic = request.gattCharacteristic!!
+                    if (!request.hasRemaining()) { //数据源读到末尾时才知道已全部发出
+                        notifyCharacteristicWrite(request, characteristic)
+                        executeNextRequest()
+                        return
+                    }
+                    val bytes = nextPackage(request) ?: return //等待数据源读出下一包
+                    if (writeFail(request, bytes)) {
+                        updatePacing(request, false)
+                        handleWriteFailed(request)
+                        return
+                    }
+                    if (request.waitWriteResult) {
+                        request.isWaitingCallback = true
+                        request.packageSentTime = System.nanoTime()
+                        onPackageWritten(request, bytes)
+                        return //等待onCharacteristicWrite回调后再发下一包
+                    }
+                    onPackageWritten(request, bytes)
+                    recordSentTime(request)
+                    if (!request.hasRemaining()) {
+                        notifyCharacteristicWrite(request, characteristic)
+                        executeNextRequest()
+                        return
+                    }
+                    resetRequestTimeout(request)
+                    if (request.writeDelay > 0) {
+                        connHandler.sendMessageDelayed(Message.obtain(connHandler, MSG_WRITE_PACKAGE, request), request.writeDelay.toLong())
+                        return
+                    }
                 }
+            } catch (e: Exception) {
+                handleWriteFailed(request)
             }
-            if (request.value!!.size > config.packageSize) {
-                val list = BleUtils.splitPackage(request.value!!, config.packageSize)
-                if (!request.waitWriteResult) { //without waiting
-                    val delay = request.writeDelay.toLong()
-                    for (i in list.indices) {
-                        val bytes = list[i]
-                        if (i > 0 && delay > 0) {
-                            Thread.sleep(delay)
-                            if (request != currentRequest) {
-                                return
-                            }
+        }
+    }
+
+    /**
+     * 流式写入，在额度内连续发包。有包在途时写入返回false是协议栈在等上一包的回调（mDeviceBusy），等回调归还额度后再发同一包，
+     * 不算拥塞；没有包在途仍返回false才是缓冲区满，退避后重试同一包
+     */
+    private fun writeWindowPackages(request: Request) {
+        synchronized(this) {
+            try {
+                while (request === currentRequest && !request.isAborted) {
+                    val characteristic = request.gattCharacteristic!!
+                    if (!request.hasRemaining()) {
+                        if (request.inFlightCount == 0) { //全部发出并且都已回调
+                            notifyCharacteristicWrite(request, characteristic)
+                            executeNextRequest()
                         }
-                        if (writeFail(characteristic, bytes)) {
+                        return
+                    }
+                    if (request.isPaused || request.inFlightCount >= request.writeWindow) {
+                        return //等待写入回调归还额度
+                    }
+                    val bytes = nextPackage(request) ?: return
+                    if (writeFail(request, bytes)) {
+                        if (request.inFlightCount > 0) {
+                            return //等待写入回调归还额度
+                        }
+                        updatePacing(request, false)
+                        if (request.retryTimes >= config.writeRetryTimes) {
                             handleWriteFailed(request)
-                            return
+                        } else {
+                            val delay = config.writeRetryDelayMillis.toLong() shl Math.min(request.retryTimes, 6)
+                            request.retryTimes++
+                            connHandler.removeMessages(MSG_WRITE_PACKAGE)
+                            connHandler.sendMessageDelayed(Message.obtain(connHandler, MSG_WRITE_PACKAGE, request), delay)
                         }
-                    }
-                } else { //发送第一包，剩下的加入队列
-                    request.remainQueue = ConcurrentLinkedQueue()
-                    request.remainQueue!!.addAll(list)
-                    request.sendingBytes = request.remainQueue!!.remove()
-                    if (writeFail(characteristic, request.sendingBytes!!)) {
-                        handleWriteFailed(request)
                         return
                     }
+                    request.retryTimes = 0
+                    request.inFlightCount++
+                    recordSentTime(request)
+                    onPackageWritten(request, bytes)
+                    resetRequestTimeout(request)
                 }
-            } else {
-                request.sendingBytes = request.value
-                if (writeFail(characteristic, request.value!!)) {
+            } catch (e: Exception) {
+                handleWriteFailed(request)
+            }
+        }
+    }
+
+    /**
+     * 从请求数据的当前位置取出下一包，不移动位置。整包使用连接内复用的缓冲区，只有不足一包的最后一包单独分配，
+     * 数据不超过一包时直接使用原数组。协议栈在写入调用时即复制数据，所以缓冲区可在下一包复用
+     *
+     * @return 数据源的下一包还未读出时返回null，读出后继续发送
+     */
+    private fun nextPackage(request: Request): ByteArray? {
+        if (request.source != null) {
+            val bytes = request.pendingPackage
+            if (bytes == null) {
+                request.isWaitingSource = true
+                readSourcePackage(request)
+            }
+            return bytes
+        }
+        val value = request.value!!
+        val offset = request.writeOffset.toInt()
+        val len = Math.min(request.packageSize, value.size - offset)
+        if (len == value.size) {
+            return value
+        }
+        val buffer = if (len == request.packageSize) getPackageBuffer(len) else ByteArray(len)
+        System.arraycopy(value, offset, buffer, 0, len)
+        return buffer
+    }
+
+    private fun getPackageBuffer(size: Int): ByteArray {
+        var buffer = packageBuffer
+        if (buffer == null || buffer.size != size) {
+            buffer = ByteArray(size)
+            packageBuffer = buffer
+        }
+        return buffer
+    }
+
+    /**
+     * 在后台线程从数据源预读下一包，读取可能阻塞，不能占用连接的锁或者GATT回调线程。已在读取、已有未发出的包或者已到末尾时不处理
+     *
+     * @param delayMillis 数据源暂时没有数据时，延时后重试
+     */
+    private fun readSourcePackage(request: Request, delayMillis: Long = 0) {
+        if (request.isReadingSource || request.pendingPackage != null || request.isSourceEnd) {
+            return
+        }
+        request.isReadingSource = true
+        val task = Runnable { doReadSourcePackage(request) }
+        if (delayMillis > 0) {
+            connHandler.postDelayed({ Ble.instance.getExecutorService().execute(task) }, delayMillis)
+        } else {
+            Ble.instance.getExecutorService().execute(task)
+        }
+    }
+
+    //读满一包、暂时没有数据或者到达末尾为止，读出后交回连接继续发送
+    private fun doReadSourcePackage(request: Request) {
+        val source = request.source ?: return
+        val size = request.packageSize
+        var buffer = request.sourceBuffer
+        if (buffer == null || buffer.size != size) {
+            buffer = ByteArray(size)
+            request.sourceBuffer = buffer
+        }
+        var len = 0
+        var isEnd = false
+        try {
+            while (len < size) {
+                val n = source.read(buffer, len, size - len)
+                if (n < 0) {
+                    isEnd = true
+                    break
+                } else if (n == 0) { //非阻塞的通道暂时没有数据
+                    break
+                }
+                len += n
+            }
+        } catch (e: Exception) {
+            synchronized(this) {
+                request.isReadingSource = false
+                if (request === currentRequest && !request.isAborted) {
                     handleWriteFailed(request)
-                    return
                 }
             }
-            if (!request.waitWriteResult) {
-                if (request.callback != null) {
-                    Ble.instance.getMethodPoster().post(currentRequest!!.callback!!, CharacteristicWriteCallback.getMethodInfo(device, request.tag, 
-                            characteristic.service.uuid, characteristic.uuid, request.value!!))
+            return
+        }
+        synchronized(this) {
+            request.isReadingSource = false
+            if (request !== currentRequest) {
+                return
+            }
+            if (len == 0 && !isEnd) {
+                readSourcePackage(request, Math.max(config.writeRetryDelayMillis, 1).toLong())
+                return
+            }
+            request.isSourceEnd = isEnd
+            request.pendingPackage = when (len) {
+                0 -> null
+                size -> buffer
+                else -> buffer.copyOf(len)
+            }
+            if (request.isWaitingSource) {
+                request.isWaitingSource = false
+                writeNextPackage(request)
+            }
+        }
+    }
+
+    //包写入成功后移动位置，从数据源写入时预读下一包并回调进度
+    private fun onPackageWritten(request: Request, bytes: ByteArray) {
+        request.writeOffset += bytes.size
+        if (request.source != null) {
+            request.pendingPackage = null
+            readSourcePackage(request)
+            val callback = request.callback
+            if (callback != null) {
+                val elapsed = System.nanoTime() - request.startTime - request.pausedTime
+                val bytesPerSecond = if (elapsed > 0) request.writeOffset * 1000000000L / elapsed else 0
+                Ble.instance.getMethodPoster().post(callback, StreamWriteCallback.getProgressMethodInfo(device, request.tag, request.service!!,
+                        request.characteristic!!, request.writeOffset, request.source!!.length(), bytesPerSecond))
+            }
+        }
+    }
+
+    private fun notifyCharacteristicRead(request: Request, characteristic: BluetoothGattCharacteristic, value: ByteArray) {
+        val listener = request.resultListener
+        if (listener != null) {
+            listener.onRequestSucceeded(request, value)
+        } else if (request.callback != null) {
+            Ble.instance.getMethodPoster().post(request.callback, CharacteristicReadCallback.getMethodInfo(device, request.tag,
+                    characteristic.service.uuid, characteristic.uuid, value))
+        } else if (pooledValueCallback != null) {
+            postPooledValue(value) {
+                PooledValueCallback.getReadMethodInfo(device, request.tag, characteristic.service.uuid, characteristic.uuid, it)
+            }
+        } else {
+            onCharacteristicRead(request.tag, characteristic, value)
+        }
+    }
+
+    private fun notifyDescriptorRead(request: Request, descriptor: BluetoothGattDescriptor, value: ByteArray) {
+        val listener = request.resultListener
+        if (listener != null) {
+            listener.onRequestSucceeded(request, value)
+        } else if (request.callback != null) {
+            val characteristic = descriptor.characteristic
+            Ble.instance.getMethodPoster().post(request.callback, DescriptorReadCallback.getMethodInfo(device, request.tag,
+                    characteristic.service.uuid, characteristic.uuid, descriptor.uuid, value))
+        } else {
+            onDescriptorRead(request.tag, descriptor, value)
+        }
+    }
+
+    /**
+     * 读请求有未过期的缓存时，在连接线程中直接回调，不经过请求队列。批处理的请求不使用缓存
+     */
+    private fun completeFromCache(request: Request): Boolean {
+        if (request.next != null || request.service == null || request.characteristic == null) {
+            return false
+        }
+        if (request.type == Request.RequestType.READ_CHARACTERISTIC) {
+            val characteristic = getCharacteristic(request.service, request.characteristic) ?: return false
+            val value = readCache.get(request.service, request.characteristic, null) ?: return false
+            cachedReadCount++
+            connHandler.post { notifyCharacteristicRead(request, characteristic, value) }
+            return true
+        } else if (request.type == Request.RequestType.READ_DESCRIPTOR && request.descriptor != null) {
+            val descriptor = getDescriptor(request.service, request.characteristic, request.descriptor) ?: return false
+            val value = readCache.get(request.service, request.characteristic, request.descriptor) ?: return false
+            cachedReadCount++
+            connHandler.post { notifyDescriptorRead(request, descriptor, value) }
+            return true
+        }
+        return false
+    }
+
+    private fun notifyCharacteristicWrite(request: Request, characteristic: BluetoothGattCharacteristic) {
+        readCache.invalidate(characteristic.service.uuid, characteristic.uuid, null)
+        if (request.source != null) {
+            request.closeSource()
+            if (takeWaiters(request).isNotEmpty() && request.callback != null) {
+                Ble.instance.getMethodPoster().post(request.callback, StreamWriteCallback.getFinishedMethodInfo(device, request.tag,
+                        characteristic.service.uuid, characteristic.uuid, request.writeOffset))
+            }
+        } else {
+            takeWaiters(request).forEach {
+                val value = it.originValue ?: it.value!!
+                val listener = it.resultListener
+                if (listener != null) {
+                    listener.onRequestSucceeded(it, value)
+                } else if (it.callback != null) {
+                    Ble.instance.getMethodPoster().post(it.callback, CharacteristicWriteCallback.getMethodInfo(device, it.tag,
+                            characteristic.service.uuid, characteristic.uuid, value))
                 } else {
-                    onCharacteristicWrite(request.tag, characteristic.service.uuid, characteristic.uuid, request.value!!)
+                    onCharacteristicWrite(it.tag, characteristic.service.uuid, characteristic.uuid, value)
                 }
-                executeNextRequest()
             }
-        } catch (e: Exception) {
-            handleWriteFailed(request)
+        }
+    }
+
+    private fun resetRequestTimeout(request: Request) {
+        connHandler.removeMessages(MSG_REQUEST_TIMEOUT)
+        connHandler.sendMessageDelayed(Message.obtain(connHandler, MSG_REQUEST_TIMEOUT, request), config.requestTimeoutMillis.toLong())
+    }
+
+    /**
+     * 开启自适应写入节奏时，反馈一包的结果并更新请求的包间隔或窗口
+     *
+     * @param rtt 发出到回调的时长，单位为纳秒，没有时为0
+     */
+    private fun updatePacing(request: Request, isAcked: Boolean, rtt: Long = 0) {
+        val pacer = writePacer
+        if (pacer == null || !config.isAdaptiveWritePacing) {
+            return
+        }
+        if (isAcked) {
+            pacer.onPackageAcked(rtt)
+        } else {
+            pacer.onCongestion()
+        }
+        if (request.writeWindow > 0) {
+            request.writeWindow = pacer.windowSize
+        } else {
+            request.writeDelay = pacer.packageDelayMillis
+        }
+    }
+
+    //开启自适应写入节奏时记录包的发出时间，回调时计算往返时长
+    private fun recordSentTime(request: Request) {
+        if (writePacer != null && config.isAdaptiveWritePacing) {
+            request.onPackageSent(System.nanoTime(), if (request.writeWindow > 0) config.writeWindowSize else RTT_SAMPLE_CAPACITY)
         }
     }
 
     private fun handleWriteFailed(request: Request) {
         connHandler.removeMessages(MSG_REQUEST_TIMEOUT)
-        request.remainQueue = null
         handleFailedCallback(request, IConnection.REQUEST_FAIL_TYPE_REQUEST_FAILED, true)
     }
 
-    private fun writeFail(characteristic: BluetoothGattCharacteristic, value: ByteArray): Boolean {
+    private fun writeFail(request: Request, value: ByteArray): Boolean {
+        val characteristic = request.gattCharacteristic!!
         characteristic.value = value
-        val writeType = config.getWriteType(characteristic.service.uuid, characteristic.uuid)
-        if (writeType != null && (writeType == BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT || writeType == BluetoothGattCharacteristic.WRITE_TYPE_SIGNED ||
-                        writeType == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE)) {
-            characteristic.writeType = writeType
+        //写入模式在请求开始时已确定
+        if (characteristic.writeType != request.writeType) {
+            characteristic.writeType = request.writeType
         }
         return !bluetoothGatt!!.writeCharacteristic(characteristic)
     }
@@ -808,6 +2090,11 @@ abstract class BaseConnection internal constructor(val device: Device, protected
 
     companion object {
         private const val MSG_REQUEST_TIMEOUT = 0
+        private const val MSG_WRITE_PACKAGE = 10
+        private const val MSG_REQUEST_DEADLINE = 11
+        private const val RESTORE_TAG = "restore"
+        //不等待回调时最多记录的未回调包数
+        private const val RTT_SAMPLE_CAPACITY = 16
         internal const val MSG_CONNECT = 1
         internal const val MSG_DISCONNECT = 2
         internal const val MSG_REFRESH = 3
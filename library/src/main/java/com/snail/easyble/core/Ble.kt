@@ -10,11 +10,14 @@ import android.content.Intent
 import android.content.IntentFilter
 import android.content.pm.PackageManager
 import android.os.Handler
+import android.os.HandlerThread
 import android.os.Looper
 import android.util.Log
 import com.snail.easyble.callback.ConnectionStateChangeListener
 import com.snail.easyble.callback.ScanListener
 import com.snail.easyble.util.BleLogger
+import java.io.File
+import java.io.IOException
 import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.Executors
 
@@ -35,8 +38,12 @@ class Ble private constructor() {
     private var app: Application? = null
     private var scanner: Scanner? = null
     private var broadcastReceiver: BroadcastReceiver? = null
-    private val methodPoster = MethodPoster(executorService, mainHandler)
+    private val frameBatcher = FrameBatcher(mainHandler)
+    private val methodPoster = MethodPoster(executorService, mainHandler, frameBatcher)
+    private var sharedConnectionThreads: Array<HandlerThread>? = null
     val logger = BleLogger()
+    /** GATT事件记录器，始终开启，大小由[BleConfig.flightRecorderCapacity]指定 */
+    val flightRecorder by lazy { FlightRecorder(bleConfig.flightRecorderCapacity) }
 
     init {
         mainHandler.post { tryGetContext() }
@@ -89,6 +96,25 @@ class Ble private constructor() {
 
     internal fun getMethodPoster() = methodPoster
 
+    internal fun getExecutorService() = executorService
+
+    /**
+     * 获取[ConnectionThreadMode.SHARED]时分配给设备的线程的Looper
+     */
+    @Synchronized
+    internal fun getSharedConnectionLooper(addr: String): Looper {
+        var threads = sharedConnectionThreads
+        if (threads == null) {
+            threads = Array(Math.max(1, bleConfig.sharedConnectionThreadCount)) {
+                val thread = HandlerThread("easyble-connection-$it")
+                thread.start()
+                thread
+            }
+            sharedConnectionThreads = threads
+        }
+        return threads[(addr.hashCode() and Int.MAX_VALUE) % threads.size].looper
+    }
+
     internal object Holder {
         internal val BLE = Ble()
     }
@@ -134,7 +160,7 @@ class Ble private constructor() {
             app.registerReceiver(broadcastReceiver, filter)
         }
         isInited = true
-        scanner = Scanner(bluetoothAdapter!!, mainHandler)
+        scanner = Scanner(bluetoothAdapter!!, mainHandler, frameBatcher)
         return true
     }
 
@@ -174,6 +200,10 @@ class Ble private constructor() {
         scanner?.release()
         releaseAllConnections()
         getObservable().unregisterAll()
+        methodPoster.shutdown()
+        //已提交的释放消息处理完后结束
+        sharedConnectionThreads?.forEach { it.quitSafely() }
+        sharedConnectionThreads = null
     }
     
     /**
@@ -298,6 +328,34 @@ class Ble private constructor() {
         return null
     }
 
+    /**
+     * 在后台导出事件记录
+     *
+     * @param reason 导出原因，作为文件名的一部分
+     */
+    internal fun dumpFlightRecorder(addr: String, reason: String) {
+        if (!bleConfig.isFlightRecorderDumpEnabled) {
+            return
+        }
+        val dir = bleConfig.flightRecorderDumpDir ?: context?.cacheDir?.let { File(it, "ble_flight_recorder") } ?: return
+        val file = File(dir, "${addr.replace(":", "")}_$reason.bin")
+        executorService.execute {
+            try {
+                flightRecorder.dump(file)
+                logger.handleLog(Log.DEBUG, "flight recorder dumped! [addr: $addr, file: ${file.absolutePath}]")
+            } catch (e: IOException) {
+                logger.handleLog(Log.WARN, "flight recorder dump failed! [addr: $addr, error: ${e.message}]")
+            }
+        }
+    }
+
+    /**
+     * 获取所有连接的请求统计快照，需开启[BleConfig.isMetricsEnabled]
+     */
+    fun getMetricsSnapshots(): List<ConnectionMetrics.Snapshot> {
+        return connectionMap.values.mapNotNull { it.getMetricsSnapshot() }
+    }
+
     /**
      * 获取设备的连接实例
      */
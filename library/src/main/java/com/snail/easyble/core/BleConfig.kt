@@ -1,6 +1,7 @@
 package com.snail.easyble.core
 
 import com.snail.easyble.annotation.RunOn
+import java.io.File
 
 /**
  *
@@ -28,6 +29,54 @@ open class BleConfig {
      * 观察者或者回调的方法在没有使用注解指定调用线程时，默认被调用的线程
      */
     open var methodDefaultInvokeThread = RunOn.POSTING
+    /**
+     * 连接内部处理所在的线程，对之后创建的连接生效。不是[ConnectionThreadMode.MAIN]时，
+     * 观察者及回调的方法需要在主线程执行的，使用注解[com.snail.easyble.annotation.InvokeThread]指定或者设置[methodDefaultInvokeThread]。
+     * 连接时传入的[com.snail.easyble.callback.ConnectionStateChangeListener]仍在此线程中直接回调
+     */
+    open var connectionThreadMode = ConnectionThreadMode.MAIN
+    /**
+     * [ConnectionThreadMode.SHARED]时共用的线程数，在第一个连接创建后不再起作用
+     */
+    open var sharedConnectionThreadCount = 2
+    /**
+     * 为true时，在[RunOn.BACKGROUND]调用的方法不再交给无上限的线程池，而是按观察者（或回调）及设备分配到固定数量的单线程通道，
+     * 同一观察者收到的同一设备的事件按发生顺序依次调用，不同设备的事件并行
+     */
+    open var isSerialBackgroundDispatch = false
+    /**
+     * [isSerialBackgroundDispatch]为true时的通道（线程）数，在第一次后台调用后不再起作用
+     */
+    open var serialBackgroundThreadCount = 4
+    /**
+     * [isSerialBackgroundDispatch]为true时每个通道最多等待执行的事件数，超过时丢弃新的特征通知，其他事件最多等待50毫秒，仍没有空位时也丢弃，在第一次后台调用后不再起作用
+     */
+    open var serialBackgroundQueueCapacity = 512
+    /**
+     * 为true时，在[RunOn.MAIN]调用的方法及搜索回调不再逐个post到主线程，而是先进入队列，每帧（vsync）批量执行一次，
+     * 高频事件不会占满主线程消息队列。实现了[com.snail.easyble.callback.BatchScanListener]的搜索监听器每帧收到一次设备列表
+     */
+    open var isMainThreadBatching = false
+    /**
+     * [isMainThreadBatching]为true时每帧最多用于执行事件的时长，超过时剩余事件留到下一帧
+     */
+    open var mainThreadFrameBudgetMillis = 4
+    /**
+     * 是否统计请求的排队及执行时长等，对之后创建的连接生效。关闭时不记录任何数据
+     */
+    open var isMetricsEnabled = false
+    /**
+     * 连接超时或达到最大重连次数时，是否自动导出[Ble.flightRecorder]的记录。每个设备每种原因保留一个文件，后导出的覆盖之前的
+     */
+    open var isFlightRecorderDumpEnabled = true
+    /**
+     * [Ble.flightRecorder]保留的记录条数，在第一次记录后不再起作用
+     */
+    open var flightRecorderCapacity = 1024
+    /**
+     * 自动导出记录的目录，为null时使用应用缓存目录下的ble_flight_recorder
+     */
+    open var flightRecorderDumpDir: File? = null
     /**
      * 自动重连时，搜索次数与间隔的对应关系，key：已尝试次数，value：间隔，单位为毫秒。如搜索了1次，间隔2秒，搜索了5次，间隔30秒等
      */
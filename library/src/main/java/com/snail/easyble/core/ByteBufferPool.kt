@@ -0,0 +1,111 @@
+package com.snail.easyble.core
+
+import android.util.Log
+import com.snail.easyble.util.BleLogger
+import java.lang.ref.ReferenceQueue
+import java.lang.ref.WeakReference
+import java.nio.ByteBuffer
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * 连接内的字节缓冲池，按2的幂分级，最大到ATT属性值的最大长度。超出的按需分配，不回收。
+ *
+ * 开启泄漏检测时，每个取出的缓冲区用弱引用跟踪，未归还就被回收的会在下次取出时打印取出时的调用栈。
+ * 检测需要记录调用栈，只应在调试时开启
+ *
+ * date: 2026/10/18 18:40
+ */
+internal class ByteBufferPool(private val leakDetection: Boolean) {
+    private val freeLists = Array(CLASS_COUNT) { ArrayDeque<PooledBuffer>() }
+    private val refQueue = ReferenceQueue<PooledBuffer>()
+    //持有未归还缓冲区的跟踪引用，保证引用本身不被回收
+    private val leakRefs = Collections.newSetFromMap(ConcurrentHashMap<LeakRef, Boolean>())
+
+    class PooledBuffer(val array: ByteArray, val sizeClass: Int) {
+        /** 只读视图，每次取出时重置位置 */
+        val view: ByteBuffer = ByteBuffer.wrap(array).asReadOnlyBuffer()
+        internal var isReleased = true
+        internal var leakRef: LeakRef? = null
+    }
+
+    class LeakRef(buffer: PooledBuffer, queue: ReferenceQueue<PooledBuffer>, val trace: Throwable) : WeakReference<PooledBuffer>(buffer, queue)
+
+    /**
+     * 取出一个缓冲区并复制数据，视图的limit为数据长度
+     */
+    fun acquire(src: ByteArray): PooledBuffer {
+        if (leakDetection) {
+            reportLeaks()
+        }
+        val sizeClass = sizeClassOf(src.size)
+        var buffer: PooledBuffer? = null
+        if (sizeClass >= 0) {
+            synchronized(freeLists) {
+                buffer = freeLists[sizeClass].pollFirst()
+            }
+        }
+        val b = buffer ?: PooledBuffer(ByteArray(if (sizeClass >= 0) MIN_SIZE shl sizeClass else src.size), sizeClass)
+        System.arraycopy(src, 0, b.array, 0, src.size)
+        b.view.clear()
+        b.view.limit(src.size)
+        b.isReleased = false
+        if (leakDetection) {
+            val ref = LeakRef(b, refQueue, Throwable("buffer acquired here"))
+            b.leakRef = ref
+            leakRefs.add(ref)
+        }
+        return b
+    }
+
+    /**
+     * 归还缓冲区，重复归还忽略
+     */
+    fun release(buffer: PooledBuffer) {
+        synchronized(freeLists) {
+            if (buffer.isReleased) {
+                return
+            }
+            buffer.isReleased = true
+            val ref = buffer.leakRef
+            if (ref != null) {
+                buffer.leakRef = null
+                ref.clear()
+                leakRefs.remove(ref)
+            }
+            if (buffer.sizeClass >= 0) {
+                val list = freeLists[buffer.sizeClass]
+                if (list.size < MAX_POOLED_PER_CLASS) {
+                    list.addLast(buffer)
+                }
+            }
+        }
+    }
+
+    private fun reportLeaks() {
+        while (true) {
+            val ref = refQueue.poll() as? LeakRef ?: return
+            if (leakRefs.remove(ref)) {
+                Ble.instance.logger.handleLog(Log.WARN, "pooled buffer was garbage collected before released! acquired at:\n\tat " +
+                        ref.trace.stackTrace.joinToString("\n\tat "), BleLogger.TYPE_GENERAL)
+            }
+        }
+    }
+
+    private fun sizeClassOf(size: Int): Int {
+        var sizeClass = 0
+        var capacity = MIN_SIZE
+        while (capacity < size) {
+            capacity = capacity shl 1
+            sizeClass++
+        }
+        return if (sizeClass < CLASS_COUNT) sizeClass else -1
+    }
+
+    companion object {
+        private const val MIN_SIZE = 16
+        //16 ~ 512
+        private const val CLASS_COUNT = 6
+        private const val MAX_POOLED_PER_CLASS = 16
+    }
+}
@@ -0,0 +1,24 @@
+package com.snail.easyble.core
+
+import android.bluetooth.BluetoothGattCharacteristic
+import java.util.*
+
+/**
+ * 已解析的特征，发现服务后通过[BaseConnection.getCharacteristicHandle]获取。使用句柄的请求不再按UUID查找特征。
+ * 重新发现服务或断开连接后句柄失效，需重新获取
+ *
+ * date: 2026/10/18 21:30
+ */
+class CharacteristicHandle internal constructor(internal val characteristic: BluetoothGattCharacteristic, internal val generation: Int) {
+    val service: UUID = characteristic.service.uuid
+    val uuid: UUID = characteristic.uuid
+    /** 发现服务时特征本身的写入模式。实际写入时与按UUID写入一样，每次按[ConnectionConfig.getWriteType]确定 */
+    val writeType = characteristic.writeType
+    /** 特征属性，[BluetoothGattCharacteristic.PROPERTY_READ]等的组合 */
+    val properties = characteristic.properties
+    internal val descriptors = HashMap<UUID, DescriptorHandle>()
+
+    fun hasProperty(property: Int): Boolean {
+        return properties and property != 0
+    }
+}
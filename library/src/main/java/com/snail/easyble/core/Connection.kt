@@ -4,7 +4,6 @@ import android.bluetooth.*
 import android.os.Build
 import android.os.Message
 import android.util.Log
-import androidx.annotation.UiThread
 import com.snail.easyble.callback.ConnectionStateChangeListener
 import com.snail.easyble.util.BleLogger
 import com.snail.easyble.util.BleUtils
@@ -26,6 +25,8 @@ class Connection private constructor(device: Device, bluetoothDevice: BluetoothD
     private var refreshing = false
     private var isActiveDisconnect = false
     private var lastScanStopTime = 0L
+    //发现服务后正在恢复订阅等状态，此时不按连接超时处理
+    private var isRestoring = false
 
     internal val isAutoReconnectEnabled: Boolean
         get() = config.isAutoReconnect
@@ -45,7 +46,6 @@ class Connection private constructor(device: Device, bluetoothDevice: BluetoothD
         }
     }
 
-    @UiThread
     override fun handleMsg(msg: Message) {
         if (isReleased && msg.what != MSG_RELEASE) {
             return
@@ -86,6 +86,11 @@ class Connection private constructor(device: Device, bluetoothDevice: BluetoothD
     }
 
     private fun notifyDisconnected() {
+        isRestoring = false
+        mtu = IConnection.DEFAULT_MTU
+        resetFrameDecoders()
+        clearReadCache()
+        clearGattIndex()
         device.connectionState = IConnection.STATE_DISCONNECTED
         sendConnectionCallback()
     }
@@ -129,8 +134,15 @@ class Connection private constructor(device: Device, bluetoothDevice: BluetoothD
                     refreshTimes = 0
                     tryReconnectTimes = 0
                     reconnectImmediatelyCount = 0
-                    device.connectionState = IConnection.STATE_SERVICE_DISCOVERED
-                    sendConnectionCallback()
+                    buildGattIndex()
+                    //有需要恢复的订阅等时，恢复后再通知。服务已发现，恢复期间不再计连接超时，每一步有各自的请求超时
+                    isRestoring = restoreState {
+                        isRestoring = false
+                        notifyServicesDiscovered()
+                    }
+                    if (!isRestoring) {
+                        notifyServicesDiscovered()
+                    }
                 }
             } else {
                 doClearTaskAndRefresh()
@@ -139,8 +151,16 @@ class Connection private constructor(device: Device, bluetoothDevice: BluetoothD
         }
     }
 
+    private fun notifyServicesDiscovered() {
+        device.connectionState = IConnection.STATE_SERVICE_DISCOVERED
+        sendConnectionCallback()
+    }
+
     private fun doDiscoverServices() {
         if (bluetoothGatt != null) {
+            Ble.instance.flightRecorder.record(device.addr, FlightRecorder.EVENT_DISCOVER_SERVICES)
+            clearGattIndex()
+            isRestoring = false
             bluetoothGatt!!.discoverServices()
             device.connectionState = IConnection.STATE_SERVICE_DISCOVERING
             sendConnectionCallback()
@@ -151,8 +171,8 @@ class Connection private constructor(device: Device, bluetoothDevice: BluetoothD
 
     private fun doTimer() {
         if (!isReleased) {
-            //只处理不是已发现服务并且不在刷新也不是主动断开连接的
-            if (device.connectionState != IConnection.STATE_SERVICE_DISCOVERED && !refreshing && !isActiveDisconnect) {
+            //只处理不是已发现服务并且不在刷新、恢复状态也不是主动断开连接的
+            if (device.connectionState != IConnection.STATE_SERVICE_DISCOVERED && !refreshing && !isRestoring && !isActiveDisconnect) {
                 if (device.connectionState != IConnection.STATE_DISCONNECTED) {
                     //超时
                     if (System.currentTimeMillis() - connStartTime > config.connectTimeoutMillis) {
@@ -163,12 +183,16 @@ class Connection private constructor(device: Device, bluetoothDevice: BluetoothD
                             device.connectionState == IConnection.STATE_CONNECTING -> IConnection.TIMEOUT_TYPE_CANNOT_CONNECT
                             else -> IConnection.TIMEOUT_TYPE_CANNOT_DISCOVER_SERVICES
                         }
+                        Ble.instance.flightRecorder.record(device.addr, FlightRecorder.EVENT_CONNECT_TIMEOUT, type)
                         Ble.instance.getObservable().notifyConnectTimeout(device, type)
                         stateChangeListener?.onConnectTimeout(device, type)
                         if (config.isAutoReconnect && (config.tryReconnectTimes == ConnectionConfig.TRY_RECONNECT_TIMES_INFINITE || tryReconnectTimes < config.tryReconnectTimes)) {
                             doDisconnect(true)
+                            Ble.instance.dumpFlightRecorder(device.addr, "connect_timeout")
                         } else {
                             doDisconnect(false)
+                            Ble.instance.flightRecorder.record(device.addr, FlightRecorder.EVENT_CONNECT_FAILED, IConnection.CONNECT_FAIL_TYPE_MAXIMUM_RECONNECTION)
+                            Ble.instance.dumpFlightRecorder(device.addr, "maximum_reconnection")
                             notifyConnectFailed(device, IConnection.CONNECT_FAIL_TYPE_MAXIMUM_RECONNECTION, stateChangeListener)
                             Ble.instance.logger.handleLog(Log.ERROR, "connect failed! [type: maximun reconnection, name: ${device.name}, addr: ${device.addr}]",
                                 BleLogger.TYPE_CONNECTION_STATE)
@@ -220,7 +244,8 @@ class Connection private constructor(device: Device, bluetoothDevice: BluetoothD
     }
 
     private fun doConnect() {
-        cancelRefreshState()        
+        cancelRefreshState()
+        Ble.instance.flightRecorder.record(device.addr, FlightRecorder.EVENT_CONNECT)
         device.connectionState = IConnection.STATE_CONNECTING
         sendConnectionCallback()
         Ble.instance.logger.handleLog(Log.DEBUG, "connecting [name: ${device.name}, addr: ${device.addr}]", BleLogger.TYPE_CONNECTION_STATE)        
@@ -244,6 +269,7 @@ class Connection private constructor(device: Device, bluetoothDevice: BluetoothD
     }
 
     private fun doDisconnect(reconnect: Boolean, notify: Boolean = true, release: Boolean = false) {
+        Ble.instance.flightRecorder.record(device.addr, FlightRecorder.EVENT_DISCONNECT, if (reconnect) 1 else 0)
         clearRequestQueueAndNotify()
         connHandler.removeCallbacks(connectRunnable)
         connHandler.removeMessages(MSG_DISCOVER_SERVICES)
@@ -251,6 +277,10 @@ class Connection private constructor(device: Device, bluetoothDevice: BluetoothD
             closeGatt(bluetoothGatt)
             bluetoothGatt = null
         }
+        mtu = IConnection.DEFAULT_MTU
+        resetFrameDecoders()
+        clearReadCache()
+        clearGattIndex()
         device.connectionState = IConnection.STATE_DISCONNECTED
         if (release) {
             device.connectionState = IConnection.STATE_RELEASED
@@ -360,12 +390,14 @@ class Connection private constructor(device: Device, bluetoothDevice: BluetoothD
     }
 
     override fun onConnectionStateChange(gatt: BluetoothGatt, status: Int, newState: Int) {
+        Ble.instance.flightRecorder.record(device.addr, FlightRecorder.EVENT_CONNECTION_STATE_CHANGE, newState, status)
         if (!isReleased) {
             connHandler.sendMessage(Message.obtain(connHandler, MSG_ON_CONNECTION_STATE_CHANGE, status, newState))
         }
     }
 
     override fun onServicesDiscovered(gatt: BluetoothGatt, status: Int) {
+        Ble.instance.flightRecorder.record(device.addr, FlightRecorder.EVENT_SERVICES_DISCOVERED, gatt.services.size, status)
         if (!isReleased) {
             connHandler.sendMessage(Message.obtain(connHandler, MSG_ON_SERVICES_DISCOVERED, status, 0))
         }
@@ -375,16 +407,19 @@ class Connection private constructor(device: Device, bluetoothDevice: BluetoothD
         return BleUtils.bytesToHexString(value).trim { it <= ' ' }
     }
 
-    override fun onCharacteristicRead(tag: String, characteristic: BluetoothGattCharacteristic) {
-        Ble.instance.getObservable().notifyCharacteristicRead(device, tag, characteristic.service.uuid, characteristic.uuid, characteristic.value)
+    override fun onCharacteristicRead(tag: String, characteristic: BluetoothGattCharacteristic, value: ByteArray) {
+        Ble.instance.getObservable().notifyCharacteristicRead(device, tag, characteristic.service.uuid, characteristic.uuid, value)
         Ble.instance.logger.handleLog(Log.DEBUG, "(${characteristic.uuid})characteristic read! [addr: ${device.addr}, " +
-                "value: ${getHex(characteristic.value)}]", BleLogger.TYPE_CHARACTERISTIC_READ)
+                "value: ${getHex(value)}]", BleLogger.TYPE_CHARACTERISTIC_READ)
     }
 
-    override fun onCharacteristicChanged(characteristic: BluetoothGattCharacteristic) {
-        Ble.instance.getObservable().notifyCharacteristicChanged(device, characteristic.service.uuid, characteristic.uuid, characteristic.value)
-        Ble.instance.logger.handleLog(Log.INFO, "(${characteristic.uuid})characteristic change! [addr: ${device.addr}, " +
-                "value: ${getHex(characteristic.value)}]", BleLogger.TYPE_CHARACTERISTIC_CHANGED)
+    override fun onCharacteristicChanged(characteristic: BluetoothGattCharacteristic, value: ByteArray) {
+        Ble.instance.getObservable().notifyCharacteristicChanged(device, characteristic.service.uuid, characteristic.uuid, value)
+        //通知频率高，没有日志输出时不格式化
+        if (Ble.instance.logger.isActive) {
+            Ble.instance.logger.handleLog(Log.INFO, "(${characteristic.uuid})characteristic change! [addr: ${device.addr}, " +
+                    "value: ${getHex(value)}]", BleLogger.TYPE_CHARACTERISTIC_CHANGED)
+        }
     }
 
     override fun onReadRemoteRssi(tag: String, rssi: Int) {
@@ -402,9 +437,9 @@ class Connection private constructor(device: Device, bluetoothDevice: BluetoothD
         Ble.instance.logger.handleLog(Log.DEBUG, "request failed! [addr: ${device.addr}, tag: $tag, failType: $failType]", BleLogger.TYPE_REQUEST_FIALED)
     }
 
-    override fun onDescriptorRead(tag: String, descriptor: BluetoothGattDescriptor) {
-        Ble.instance.getObservable().notifyDescriptorRead(device, tag, descriptor.characteristic.service.uuid, descriptor.characteristic.uuid, descriptor.uuid, descriptor.value)
-        Ble.instance.logger.handleLog(Log.DEBUG, "(${descriptor.characteristic.uuid})descriptor read! [addr: ${device.addr}, value: ${getHex(descriptor.value)}]",
+    override fun onDescriptorRead(tag: String, descriptor: BluetoothGattDescriptor, value: ByteArray) {
+        Ble.instance.getObservable().notifyDescriptorRead(device, tag, descriptor.characteristic.service.uuid, descriptor.characteristic.uuid, descriptor.uuid, value)
+        Ble.instance.logger.handleLog(Log.DEBUG, "(${descriptor.characteristic.uuid})descriptor read! [addr: ${device.addr}, value: ${getHex(value)}]",
             BleLogger.TYPE_DESCRIPTOR_READ)
     }
 
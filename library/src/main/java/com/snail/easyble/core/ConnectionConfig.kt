@@ -34,13 +34,43 @@ class ConnectionConfig : Cloneable {
     /** 一次向特征写入的字节数 */
     var packageSize = 20 
         private set
+    /** 是否根据协商后的MTU自动确定包大小，为true时包大小为MTU - 3，[packageSize]不再起作用 */
+    var isAutoPackageSize = false
+        private set
     /** 是否等待写入结果回调 */
     var isWaitWriteResult = true
         private set
+    /** 流式写入时同时在途的最大包数，大于0时对写入模式为[BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE]的特征启用流式写入。
+     * 每收到一次写入回调归还一个额度，此模式下不使用[packageWriteDelayMillis]。多数系统的协议栈在上一包回调前拒绝新的写入，
+     * 此时实际在途的只有一包，大于1的窗口只在没有这一限制的协议栈上起作用 */
+    var writeWindowSize = 0
+        private set
+    /** 流式写入时协议栈缓冲区满（写入返回false）后首次重试的等待时长，连续失败时翻倍 */
+    var writeRetryDelayMillis = 5
+        private set
+    /** 流式写入时同一包的最大连续重试次数，超过则请求失败 */
+    var writeRetryTimes = 8
+        private set
+    /** 是否自适应调整写入节奏。开启后以[packageWriteDelayMillis]及[writeWindowSize]为初始值，根据写入回调的往返时长及失败、超时情况自动调整 */
+    var isAdaptiveWritePacing = false
+        private set
+    /** 是否在重连后自动恢复断开前的通知/指示订阅、MTU及物理层设置 */
+    var isRestoreSubscriptions = false
+        private set
+    /** 是否合并相同的读请求。未完成的读请求与新的读请求目标相同时，只执行一次读操作，结果回调给每个请求 */
+    var isCoalesceReads = false
+        private set
+    /** 是否合并连续的写请求。同一优先级中排在最后的写请求与新的写请求目标特征相同，并且合并后不超过包大小时，拼接为一次写入 */
+    var isCoalesceWrites = false
+        private set
+    /** 使用缓冲池传递数据时是否检测缓冲区泄漏，会记录每次取出时的调用栈，只应在调试时开启 */
+    var isBufferLeakDetection = false
+        private set
     /** 不经过搜索，直接使用之间的MAC地址连接的次数，重连达到此次数后，恢复搜索到设备再进行连接 */
     var reconnectImmediatelyTimes = 3
         private set
     private val writeTypeMap = HashMap<String, Int>()
+    private val readCacheTtlMap = HashMap<UUID, Long>()
     /** 是否自动重连 */
     var isAutoReconnect = true
         private set
@@ -105,6 +135,14 @@ class ConnectionConfig : Cloneable {
         return this
     }
 
+    /**
+     * 设置是否根据协商后的MTU自动确定包大小。开启后，包大小为当前MTU - 3，MTU修改成功后自动生效，断开连接后恢复为默认MTU对应的大小
+     */
+    fun setAutoPackageSize(isAutoPackageSize: Boolean): ConnectionConfig {
+        this.isAutoPackageSize = isAutoPackageSize
+        return this
+    }
+
     /**
      * 获取特征的写入模式
      */
@@ -123,6 +161,29 @@ class ConnectionConfig : Cloneable {
         return this
     }
 
+    /**
+     * 获取特征或描述符读取结果的缓存有效期，未设置时返回0，即不缓存
+     */
+    fun getReadCacheTtl(uuid: UUID): Long {
+        return readCacheTtlMap[uuid] ?: 0
+    }
+
+    /**
+     * 设置特征或描述符读取结果的缓存有效期。有效期内的读请求直接使用缓存的值回调，不经过请求队列。
+     * 特征收到通知、写入该特征或者断开连接时缓存失效
+     *
+     * @param uuid 特征或描述符的UUID
+     * @param ttlMillis 有效期，小于等于0时不缓存
+     */
+    fun setReadCacheTtl(uuid: UUID, ttlMillis: Long): ConnectionConfig {
+        if (ttlMillis > 0) {
+            readCacheTtlMap[uuid] = ttlMillis
+        } else {
+            readCacheTtlMap.remove(uuid)
+        }
+        return this
+    }
+
     /**
      * 设置是否等待写入结果回调
      * @param isWaitWriteResult true时，则在onCharacteristicWrite回调后再送下一包数据，否则直接发下包数据
@@ -132,6 +193,73 @@ class ConnectionConfig : Cloneable {
         return this
     }
 
+    /**
+     * 设置流式写入的窗口大小，即同时在途的最大包数。只作用于写入模式为[BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE]的特征，
+     * 小于等于0时不启用。协议栈在上一包回调前拒绝写入时等待回调后再发，不算拥塞
+     */
+    fun setWriteWindowSize(writeWindowSize: Int): ConnectionConfig {
+        this.writeWindowSize = writeWindowSize
+        return this
+    }
+
+    /**
+     * 设置流式写入时缓冲区满后的重试策略
+     *
+     * @param retryDelayMillis 首次重试的等待时长，连续失败时翻倍
+     * @param retryTimes 同一包的最大连续重试次数
+     */
+    fun setWriteRetry(retryDelayMillis: Int, retryTimes: Int): ConnectionConfig {
+        if (retryDelayMillis > 0) {
+            this.writeRetryDelayMillis = retryDelayMillis
+        }
+        if (retryTimes >= 0) {
+            this.writeRetryTimes = retryTimes
+        }
+        return this
+    }
+
+    /**
+     * 设置是否自适应调整写入节奏。成功时逐步缩短包间隔、扩大窗口，缓冲区满、写入失败或超时时包间隔加倍、窗口减半，
+     * 窗口不超过[writeWindowSize]。当前值通过[BaseConnection.getWritePacing]获取
+     */
+    fun setAdaptiveWritePacing(isAdaptiveWritePacing: Boolean): ConnectionConfig {
+        this.isAdaptiveWritePacing = isAdaptiveWritePacing
+        return this
+    }
+
+    /**
+     * 设置是否在重连后自动恢复状态。开启后连接记录成功的订阅、协商的MTU及设置的物理层，重新发现服务后作为一个批处理依次恢复，
+     * 完成后才通知[IConnection.STATE_SERVICE_DISCOVERED]。恢复失败的步骤不影响其他步骤
+     */
+    fun setRestoreSubscriptions(isRestoreSubscriptions: Boolean): ConnectionConfig {
+        this.isRestoreSubscriptions = isRestoreSubscriptions
+        return this
+    }
+
+    /**
+     * 设置是否合并相同的读请求，包括读特征、读描述符、读信号强度及读物理层
+     */
+    fun setCoalesceReads(isCoalesceReads: Boolean): ConnectionConfig {
+        this.isCoalesceReads = isCoalesceReads
+        return this
+    }
+
+    /**
+     * 设置是否合并连续的写请求。合并后设备收到的是一次写入，只适用于协议允许拼接的特征，从数据源流式写入的请求不合并
+     */
+    fun setCoalesceWrites(isCoalesceWrites: Boolean): ConnectionConfig {
+        this.isCoalesceWrites = isCoalesceWrites
+        return this
+    }
+
+    /**
+     * 设置使用缓冲池传递数据时是否检测缓冲区泄漏，需在设置[com.snail.easyble.callback.PooledValueCallback]之前设置
+     */
+    fun setBufferLeakDetection(isBufferLeakDetection: Boolean): ConnectionConfig {
+        this.isBufferLeakDetection = isBufferLeakDetection
+        return this
+    }
+
     /**
      * 设置不经过搜索，直接使用之间的MAC地址连接的次数，重连达到此次数后，恢复搜索到设备再进行连接
      */
@@ -0,0 +1,104 @@
+package com.snail.easyble.core
+
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * 连接的请求统计。记录每个请求的排队时长（入队到开始执行）及执行时长（开始执行到完成），按请求类型分别统计，
+ * 特征相关的请求另按特征统计总时长。[BleConfig.isMetricsEnabled]为true时才创建
+ *
+ * date: 2026/10/18 19:40
+ */
+class ConnectionMetrics internal constructor(private val device: Device) {
+    private val queueLatency = EnumMap<Request.RequestType, LatencyHistogram>(Request.RequestType::class.java)
+    private val executeLatency = EnumMap<Request.RequestType, LatencyHistogram>(Request.RequestType::class.java)
+    private val characteristicLatency = ConcurrentHashMap<UUID, LatencyHistogram>()
+    private val maxQueueDepth = AtomicInteger()
+    private val succeededCount = AtomicLong()
+    private val failedCount = AtomicLong()
+    private val timeoutCount = AtomicLong()
+    private val cancelledCount = AtomicLong()
+
+    init {
+        Request.RequestType.values().forEach {
+            queueLatency[it] = LatencyHistogram()
+            executeLatency[it] = LatencyHistogram()
+        }
+    }
+
+    internal fun onEnqueued(request: Request, queueDepth: Int) {
+        request.enqueueTime = System.nanoTime()
+        var max = maxQueueDepth.get()
+        while (queueDepth > max && !maxQueueDepth.compareAndSet(max, queueDepth)) {
+            max = maxQueueDepth.get()
+        }
+    }
+
+    internal fun onExecute(request: Request) {
+        request.executeTime = System.nanoTime()
+        if (request.enqueueTime > 0) {
+            queueLatency[request.type]!!.record((request.executeTime - request.enqueueTime) / 1000)
+        }
+    }
+
+    /**
+     * 每个请求只统计一次
+     *
+     * @param failType 成功时为-1
+     */
+    internal fun onFinished(request: Request, failType: Int) {
+        if (request.isMetricsRecorded) {
+            return
+        }
+        request.isMetricsRecorded = true
+        val now = System.nanoTime()
+        if (request.executeTime > 0) {
+            executeLatency[request.type]!!.record((now - request.executeTime) / 1000)
+        }
+        val characteristic = request.characteristic
+        if (characteristic != null && request.enqueueTime > 0) {
+            var histogram = characteristicLatency[characteristic]
+            if (histogram == null) {
+                histogram = LatencyHistogram()
+                characteristicLatency.putIfAbsent(characteristic, histogram)
+                histogram = characteristicLatency[characteristic]!!
+            }
+            histogram.record((now - request.enqueueTime) / 1000)
+        }
+        when (failType) {
+            -1 -> succeededCount.incrementAndGet()
+            IConnection.REQUEST_FAIL_TYPE_REQUEST_TIMEOUT -> timeoutCount.incrementAndGet()
+            IConnection.REQUEST_FAIL_TYPE_REQUEST_CANCELLED -> cancelledCount.incrementAndGet()
+            else -> failedCount.incrementAndGet()
+        }
+    }
+
+    internal fun snapshot(queueDepth: Int): Snapshot {
+        val queue = EnumMap<Request.RequestType, LatencyHistogram.Snapshot>(Request.RequestType::class.java)
+        val execute = EnumMap<Request.RequestType, LatencyHistogram.Snapshot>(Request.RequestType::class.java)
+        queueLatency.forEach { (type, histogram) -> queue[type] = histogram.snapshot() }
+        executeLatency.forEach { (type, histogram) -> execute[type] = histogram.snapshot() }
+        val characteristics = HashMap<UUID, LatencyHistogram.Snapshot>()
+        characteristicLatency.forEach { (uuid, histogram) -> characteristics[uuid] = histogram.snapshot() }
+        return Snapshot(device.addr, queueDepth, maxQueueDepth.get(), succeededCount.get(), failedCount.get(), timeoutCount.get(),
+                cancelledCount.get(), queue, execute, characteristics)
+    }
+
+    /**
+     * 统计快照
+     *
+     * @param queueDepth 当前排队的请求数
+     * @param maxQueueDepth 排队请求数的峰值
+     * @param failedCount 除超时及取消外的失败数
+     * @param queueLatency 各请求类型的排队时长
+     * @param executeLatency 各请求类型的执行时长
+     * @param characteristicLatency 各特征请求的总时长，入队到完成
+     */
+    class Snapshot internal constructor(val addr: String, val queueDepth: Int, val maxQueueDepth: Int, val succeededCount: Long,
+                                        val failedCount: Long, val timeoutCount: Long, val cancelledCount: Long,
+                                        val queueLatency: Map<Request.RequestType, LatencyHistogram.Snapshot>,
+                                        val executeLatency: Map<Request.RequestType, LatencyHistogram.Snapshot>,
+                                        val characteristicLatency: Map<UUID, LatencyHistogram.Snapshot>)
+}
@@ -0,0 +1,15 @@
+package com.snail.easyble.core
+
+/**
+ * 连接内部处理（状态变化、定时器、请求超时、重连等）所在的线程
+ *
+ * date: 2026/10/18 19:10
+ */
+enum class ConnectionThreadMode {
+    /** 主线程 */
+    MAIN,
+    /** 每个连接一个独立的线程，连接释放时结束 */
+    DEDICATED,
+    /** 所有连接共用固定数量的线程，按设备地址分配，同一设备始终在同一线程 */
+    SHARED
+}
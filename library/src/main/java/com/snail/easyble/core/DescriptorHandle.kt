@@ -0,0 +1,13 @@
+package com.snail.easyble.core
+
+import android.bluetooth.BluetoothGattDescriptor
+import java.util.*
+
+/**
+ * 已解析的描述符，发现服务后通过[BaseConnection.getDescriptorHandle]获取
+ *
+ * date: 2026/10/18 21:31
+ */
+class DescriptorHandle internal constructor(val characteristic: CharacteristicHandle, internal val descriptor: BluetoothGattDescriptor) {
+    val uuid: UUID = descriptor.uuid
+}
@@ -12,10 +12,12 @@ import java.util.*
  * author: zengfansheng
  */
 open class EventObservable {
+    private val lock = Any()
     /**
-     * 注册的观察者
+     * 注册的观察者，写时复制。只在注册、取消注册或者发现已回收的观察者时重建，通知时不加锁
      */
-    private val observers = ArrayList<WeakReference<EventObserver>>()
+    @Volatile
+    private var observers = emptyArray<WeakReference<EventObserver>>()
 
     /**
      * 将观察者添加到注册集合里
@@ -24,28 +26,27 @@ open class EventObservable {
      * @throws IllegalStateException 如果观察者已注册将抛此异常
      */
     fun registerObserver(observer: EventObserver) {
-        synchronized(observers) {
+        synchronized(lock) {
             observers.forEach { 
                 if (it.get() == observer) {
                     throw IllegalStateException("Observer $observer is already registered.")
                 }
             }
-            observers.add(WeakReference(observer))
+            observers = observers.filter { it.get() != null }.toTypedArray() + WeakReference(observer)
         }
+        Ble.instance.getMethodPoster().resolveThreadPolicies(observer.javaClass)
     }
 
     /**
      * 观察者是否已注册
      */
     fun isRegistered(observer: EventObserver): Boolean {
-        synchronized(observers) {
-            observers.forEach {
-                if (it.get() == observer) {
-                    return true
-                }
+        observers.forEach {
+            if (it.get() == observer) {
+                return true
             }
-            return false
         }
+        return false
     } 
     
     /**
@@ -54,14 +55,11 @@ open class EventObservable {
      * @param observer 需要取消注册的观察者
      */
     fun unregisterObserver(observer: EventObserver) {
-        synchronized(observers) {
-            val iterator = observers.iterator()
-            while (iterator.hasNext()) {
-                if (iterator.next().get() == observer) {
-                    iterator.remove()
-                    return
-                }
-            }
+        synchronized(lock) {
+            observers = observers.filter { 
+                val o = it.get()
+                o != null && o != observer
+            }.toTypedArray()
         }
     }
 
@@ -69,43 +67,80 @@ open class EventObservable {
      * 将所有观察者从注册集合中移除
      */
     fun unregisterAll() {
-        synchronized(observers) {
-            observers.clear()
+        synchronized(lock) {
+            observers = emptyArray()
         }
     }
-    
-    private fun getObservers(): Array<EventObserver> {
-        synchronized(observers) {
-            val obs = ArrayList<EventObserver>()
-            val iterator = observers.iterator()
-            while (iterator.hasNext()) {
-                val observer = iterator.next().get()
-                if (observer == null) {
-                    iterator.remove()
-                } else {
-                    obs.add(observer)
-                }
-            }
-            return obs.toTypedArray()
+
+    //移除已被回收的观察者
+    private fun removeCollected() {
+        synchronized(lock) {
+            observers = observers.filter { it.get() != null }.toTypedArray()
         }
     }
     
     protected fun notifyAll(methodName: String, valueTypePairs: Array<ValueTypePair>?) {
-        getObservers().forEach {
-            Ble.instance.getMethodPoster().post(it, methodName, valueTypePairs)
+        var hasCollected = false
+        for (ref in observers) {
+            val observer = ref.get()
+            if (observer == null) {
+                hasCollected = true
+            } else {
+                Ble.instance.getMethodPoster().post(observer, methodName, valueTypePairs)
+            }
+        }
+        if (hasCollected) {
+            removeCollected()
         }
     }
     
     protected fun notifyAll(methodInfo: MethodInfo) {
-        notifyAll(methodInfo.name, methodInfo.valueTypePairs)
+        var hasCollected = false
+        for (ref in observers) {
+            val observer = ref.get()
+            if (observer == null) {
+                hasCollected = true
+            } else {
+                Ble.instance.getMethodPoster().post(observer, methodInfo)
+            }
+        }
+        if (hasCollected) {
+            removeCollected()
+        }
     }
     
     internal fun notifyBluetoothStateChanged(state: Int) {
-        notifyAll("onBluetoothStateChanged", arrayOf(ValueTypePair(state, Int::class.java)))
+        notifyAll(MethodInfo("onBluetoothStateChanged", arrayOf(ValueTypePair(state, Int::class.java)))
+                .typed<EventObserver>(BLUETOOTH_STATE_CHANGED) { it.onBluetoothStateChanged(state) })
     }
 
+    /**
+     * 通知频率高，在当前线程执行的观察者直接调用，不分配内存。需要切换线程的才创建[MethodInfo]
+     */
     internal fun notifyCharacteristicChanged(device: Device, serviceUuid: UUID, characteristicUuid: UUID, value: ByteArray) {
-        notifyAll(CharacteristicChangedCallback.getMethodInfo(device, serviceUuid, characteristicUuid, value))
+        val poster = Ble.instance.getMethodPoster()
+        var methodInfo: MethodInfo? = null
+        var hasCollected = false
+        for (ref in observers) {
+            val observer = ref.get()
+            if (observer == null) {
+                hasCollected = true
+            } else if (poster.isPosting(observer, CharacteristicChangedCallback.SIGNATURE)) {
+                try {
+                    observer.onCharacteristicChanged(device, serviceUuid, characteristicUuid, value)
+                } catch (e: Exception) {
+                    e.printStackTrace()
+                }
+            } else {
+                if (methodInfo == null) {
+                    methodInfo = CharacteristicChangedCallback.getMethodInfo(device, serviceUuid, characteristicUuid, value)
+                }
+                poster.post(observer, methodInfo)
+            }
+        }
+        if (hasCollected) {
+            removeCollected()
+        }
     }
 
     internal fun notifyCharacteristicRead(device: Device, tag: String, serviceUuid: UUID, characteristicUuid: UUID, value: ByteArray) {
@@ -120,7 +155,7 @@ open class EventObservable {
      * @param type 连接失败类型。[IConnection.CONNECT_FAIL_TYPE_MAXIMUM_RECONNECTION], [IConnection.CONNECT_FAIL_TYPE_UNSPECIFIED_ADDRESS]
      */
     internal fun notifyConnectFailed(device: Device?, type: Int) {
-        notifyAll("onConnectFailed", arrayOf(ValueTypePair(device, Device::class.java), ValueTypePair(type, Int::class.java)))
+        notifyAll(ConnectionStateChangeListener.getConnectFailedMethodInfo(device, type))
     }
 
     /**
@@ -129,7 +164,7 @@ open class EventObservable {
      * [IConnection.STATE_SERVICE_DISCOVERED]
      */
     internal fun notifyConnectionStateChanged(device: Device) {
-        notifyAll("onConnectionStateChanged", arrayOf(ValueTypePair(device, Device::class.java)))
+        notifyAll(ConnectionStateChangeListener.getStateChangedMethodInfo(device))
     }
 
     /**
@@ -137,7 +172,7 @@ open class EventObservable {
      * [IConnection.TIMEOUT_TYPE_CANNOT_DISCOVER_SERVICES]
      */
     internal fun notifyConnectTimeout(device: Device, type: Int) {
-        notifyAll("onConnectTimeout", arrayOf(ValueTypePair(device, Device::class.java), ValueTypePair(type, Int::class.java)))
+        notifyAll(ConnectionStateChangeListener.getConnectTimeoutMethodInfo(device, type))
     }
 
     internal fun notifyDescriptorRead(device: Device, tag: String, serviceUuid: UUID, characteristicUuid: UUID, descriptorUuid: UUID, value: ByteArray) {
@@ -184,4 +219,8 @@ open class EventObservable {
     internal fun notifyRequestFailed(device: Device, tag: String, requestType: Request.RequestType, failType: Int, src: ByteArray?) {
         notifyAll(RequestFailedCallback.getMethodInfo(device, tag, requestType, failType, src))
     }
-}
\ No newline at end of file
+
+    private companion object {
+        val BLUETOOTH_STATE_CHANGED = MethodInvoker.signatureOf("onBluetoothStateChanged", Int::class.java)
+    }
+}
@@ -0,0 +1,184 @@
+package com.snail.easyble.core
+
+import android.os.SystemClock
+import java.io.*
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * GATT事件记录器。固定大小的环形缓冲区，始终记录最近的连接、发现服务、请求开始/结束、通知及超时等事件，
+ * 记录时不分配内存也不加锁，多个连接的回调线程可同时记录。连接超时或达到最大重连次数时按[BleConfig.isFlightRecorderDumpEnabled]自动导出
+ *
+ * 导出的二进制格式（大端）：
+ * - 头：magic(4, "EBFR") version(2) 负载前缀长度(2) 导出时的elapsedRealtimeNanos(8) 导出时的currentTimeMillis(8) 记录数(4)
+ * - 每条记录：elapsedRealtimeNanos(8) 地址(6) 事件(1) 参数(1) 状态(4) 负载长度(2) 负载前缀(固定[PREFIX_SIZE])
+ *
+ * date: 2026/10/18 20:10
+ */
+class FlightRecorder internal constructor(capacity: Int) {
+    private val capacity = Math.max(capacity, 16)
+    private val times = LongArray(this.capacity)
+    private val addrs = LongArray(this.capacity)
+    private val events = ByteArray(this.capacity)
+    private val args = ByteArray(this.capacity)
+    private val statuses = IntArray(this.capacity)
+    private val lengths = ShortArray(this.capacity)
+    private val prefixes = ByteArray(this.capacity * PREFIX_SIZE)
+    //每个位置上记录的序号，正在写入时为-1，导出时用于跳过正在写入或者已被覆盖的记录
+    private val stamps = AtomicLongArray(this.capacity)
+    //下一条记录的序号，位置为序号对容量取余
+    private val sequence = AtomicLong()
+    //清空时的序号，之前的记录不再导出
+    @Volatile
+    private var clearedSequence = 0L
+
+    init {
+        for (i in 0 until this.capacity) {
+            stamps.set(i, -1)
+        }
+    }
+
+    /**
+     * 记录一个事件
+     *
+     * @param addr 设备地址，格式为XX:XX:XX:XX:XX:XX
+     * @param event 事件，[EVENT_CONNECT]等
+     * @param arg 事件参数，如请求事件中为请求类型的序号
+     * @param status 状态码
+     * @param payload 负载，只记录长度及前[PREFIX_SIZE]个字节
+     */
+    @JvmOverloads
+    fun record(addr: String, event: Int, arg: Int = 0, status: Int = 0, payload: ByteArray? = null) {
+        val time = SystemClock.elapsedRealtimeNanos()
+        val addrValue = parseAddr(addr)
+        val seq = sequence.getAndIncrement()
+        val i = (seq % capacity).toInt()
+        stamps.set(i, -1)
+        times[i] = time
+        addrs[i] = addrValue
+        events[i] = event.toByte()
+        args[i] = arg.toByte()
+        statuses[i] = status
+        val length = payload?.size ?: 0
+        lengths[i] = Math.min(length, 0xFFFF).toShort()
+        val offset = i * PREFIX_SIZE
+        for (j in 0 until PREFIX_SIZE) {
+            prefixes[offset + j] = if (j < length) payload!![j] else 0
+        }
+        stamps.set(i, seq)
+    }
+
+    /**
+     * 清空记录
+     */
+    fun clear() {
+        clearedSequence = sequence.get()
+    }
+
+    /**
+     * 按从旧到新的顺序导出当前所有记录。不阻塞记录，导出期间正在写入或者被覆盖的记录跳过
+     */
+    @Throws(IOException::class)
+    fun dump(out: OutputStream) {
+        val end = sequence.get()
+        val start = Math.max(clearedSequence, end - capacity)
+        //先复制出来，写入文件期间记录位置可能被覆盖
+        val records = ByteArrayOutputStream()
+        val recordOutput = DataOutputStream(records)
+        val prefix = ByteArray(PREFIX_SIZE)
+        var count = 0
+        for (seq in start until end) {
+            val i = (seq % capacity).toInt()
+            if (stamps.get(i) != seq) {
+                continue
+            }
+            val time = times[i]
+            val addr = addrs[i]
+            val event = events[i]
+            val arg = args[i]
+            val status = statuses[i]
+            val length = lengths[i]
+            System.arraycopy(prefixes, i * PREFIX_SIZE, prefix, 0, PREFIX_SIZE)
+            if (stamps.get(i) != seq) {
+                continue
+            }
+            recordOutput.writeLong(time)
+            for (shift in 40 downTo 0 step 8) {
+                recordOutput.writeByte((addr ushr shift).toInt())
+            }
+            recordOutput.writeByte(event.toInt())
+            recordOutput.writeByte(arg.toInt())
+            recordOutput.writeInt(status)
+            recordOutput.writeShort(length.toInt())
+            recordOutput.write(prefix)
+            count++
+        }
+        val output = DataOutputStream(BufferedOutputStream(out))
+        output.writeInt(MAGIC)
+        output.writeShort(VERSION)
+        output.writeShort(PREFIX_SIZE)
+        output.writeLong(SystemClock.elapsedRealtimeNanos())
+        output.writeLong(System.currentTimeMillis())
+        output.writeInt(count)
+        records.writeTo(output)
+        output.flush()
+    }
+
+    /**
+     * 导出到文件，已存在则覆盖
+     */
+    @Throws(IOException::class)
+    fun dump(file: File) {
+        file.parentFile?.mkdirs()
+        FileOutputStream(file).use { dump(it) }
+    }
+
+    companion object {
+        /** 每条记录保存的负载字节数 */
+        const val PREFIX_SIZE = 8
+        private const val MAGIC = 0x45424652
+        private const val VERSION = 1
+
+        /** 开始连接 */
+        const val EVENT_CONNECT = 1
+        /** 连接状态变化，参数为新状态 */
+        const val EVENT_CONNECTION_STATE_CHANGE = 2
+        /** 断开连接，参数为1时会重连 */
+        const val EVENT_DISCONNECT = 3
+        /** 开始发现服务 */
+        const val EVENT_DISCOVER_SERVICES = 4
+        /** 服务发现完成 */
+        const val EVENT_SERVICES_DISCOVERED = 5
+        /** 请求开始执行，参数为请求类型的序号 */
+        const val EVENT_REQUEST_START = 6
+        /** 请求结束，参数为请求类型的序号，状态为失败类型，成功时为-1 */
+        const val EVENT_REQUEST_FINISH = 7
+        /** 收到通知 */
+        const val EVENT_NOTIFICATION = 8
+        /** 请求超时，参数为请求类型的序号 */
+        const val EVENT_REQUEST_TIMEOUT = 9
+        /** 连接超时，参数为超时类型 */
+        const val EVENT_CONNECT_TIMEOUT = 10
+        /** 连接失败，参数为失败类型 */
+        const val EVENT_CONNECT_FAILED = 11
+
+        //不创建字符串，地址格式不对时返回0
+        private fun parseAddr(addr: String): Long {
+            if (addr.length != 17) {
+                return 0
+            }
+            var value = 0L
+            for (i in 0 until 17) {
+                if (i % 3 == 2) {
+                    continue
+                }
+                val digit = Character.digit(addr[i], 16)
+                if (digit < 0) {
+                    return 0
+                }
+                value = (value shl 4) or digit.toLong()
+            }
+            return value
+        }
+    }
+}
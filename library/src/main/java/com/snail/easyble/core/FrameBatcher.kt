@@ -0,0 +1,57 @@
+package com.snail.easyble.core
+
+import android.os.Handler
+import android.os.Looper
+import android.view.Choreographer
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * 主线程按帧批量执行。任务先进入无锁队列，每个vsync执行一次，单帧执行时长超过预算时剩余任务留到下一帧
+ *
+ * date: 2026/10/18 23:30
+ */
+internal class FrameBatcher(private val mainHandler: Handler) : Choreographer.FrameCallback {
+    private val queue = ConcurrentLinkedQueue<Runnable>()
+    //是否已预约下一帧
+    private val scheduled = AtomicBoolean()
+    private val scheduleRunnable = Runnable { Choreographer.getInstance().postFrameCallback(this) }
+
+    fun post(runnable: Runnable) {
+        queue.offer(runnable)
+        if (scheduled.compareAndSet(false, true)) {
+            schedule()
+        }
+    }
+
+    //Choreographer需在主线程获取
+    private fun schedule() {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            Choreographer.getInstance().postFrameCallback(this)
+        } else {
+            mainHandler.post(scheduleRunnable)
+        }
+    }
+
+    override fun doFrame(frameTimeNanos: Long) {
+        val budget = Math.max(Ble.instance.bleConfig.mainThreadFrameBudgetMillis, 1) * 1000000L
+        val start = System.nanoTime()
+        while (System.nanoTime() - start < budget) {
+            val runnable = queue.poll() ?: break
+            try {
+                runnable.run()
+            } catch (e: Exception) {
+                e.printStackTrace()
+            }
+        }
+        if (queue.isEmpty()) {
+            scheduled.set(false)
+            //清除标记前有新任务入队的，由这里预约
+            if (!queue.isEmpty() && scheduled.compareAndSet(false, true)) {
+                Choreographer.getInstance().postFrameCallback(this)
+            }
+        } else {
+            Choreographer.getInstance().postFrameCallback(this)
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.snail.easyble.core
+
+import android.bluetooth.BluetoothGattCharacteristic
+import android.bluetooth.BluetoothGattService
+import java.util.*
+
+/**
+ * 发现服务后建立的服务、特征及描述符索引，建立后不再修改，可在任意线程读取。
+ * 同一服务中有相同UUID的特征时与[BluetoothGattService.getCharacteristic]一致，取第一个
+ *
+ * date: 2026/10/18 21:34
+ */
+internal class GattIndex(services: List<BluetoothGattService>, val generation: Int) {
+    private val serviceMap = HashMap<UUID, BluetoothGattService>()
+    private val characteristicMap = HashMap<UUID, HashMap<UUID, CharacteristicHandle>>()
+
+    init {
+        services.forEach { service ->
+            if (serviceMap.containsKey(service.uuid)) {
+                return@forEach
+            }
+            serviceMap[service.uuid] = service
+            val handles = HashMap<UUID, CharacteristicHandle>()
+            service.characteristics.forEach { characteristic ->
+                if (!handles.containsKey(characteristic.uuid)) {
+                    val handle = CharacteristicHandle(characteristic, generation)
+                    characteristic.descriptors.forEach {
+                        if (!handle.descriptors.containsKey(it.uuid)) {
+                            handle.descriptors[it.uuid] = DescriptorHandle(handle, it)
+                        }
+                    }
+                    handles[characteristic.uuid] = handle
+                }
+            }
+            characteristicMap[service.uuid] = handles
+        }
+    }
+
+    fun getService(service: UUID): BluetoothGattService? {
+        return serviceMap[service]
+    }
+
+    fun getCharacteristic(service: UUID, characteristic: UUID): CharacteristicHandle? {
+        return characteristicMap[service]?.get(characteristic)
+    }
+
+    fun getDescriptor(service: UUID, characteristic: UUID, descriptor: UUID): DescriptorHandle? {
+        return getCharacteristic(service, characteristic)?.descriptors?.get(descriptor)
+    }
+
+    companion object {
+        /**
+         * 配置的写入模式有效时使用配置的，否则使用特征本身的。每个写请求开始时确定，配置的修改对之后的请求生效
+         */
+        fun resolveWriteType(config: ConnectionConfig, characteristic: BluetoothGattCharacteristic): Int {
+            val writeType = config.getWriteType(characteristic.service.uuid, characteristic.uuid)
+            return if (writeType == BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT || writeType == BluetoothGattCharacteristic.WRITE_TYPE_SIGNED ||
+                    writeType == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE) writeType else characteristic.writeType
+        }
+    }
+}
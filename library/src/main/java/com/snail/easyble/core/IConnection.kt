@@ -13,9 +13,15 @@ import java.util.*
  */
 interface IConnection {
 
-    fun onCharacteristicRead(tag: String, characteristic: BluetoothGattCharacteristic)
+    /**
+     * @param value 读到的值，从缓存读取时与characteristic.value可能不是同一数组
+     */
+    fun onCharacteristicRead(tag: String, characteristic: BluetoothGattCharacteristic, value: ByteArray)
 
-    fun onCharacteristicChanged(characteristic: BluetoothGattCharacteristic)
+    /**
+     * @param value 收到的数据，设置了帧解码器时为完整的帧
+     */
+    fun onCharacteristicChanged(characteristic: BluetoothGattCharacteristic, value: ByteArray)
 
     fun onReadRemoteRssi(tag: String, rssi: Int)
 
@@ -23,7 +29,7 @@ interface IConnection {
 
     fun onRequestFialed(tag: String, requestType: Request.RequestType, failType: Int, value: ByteArray?)
 
-    fun onDescriptorRead(tag: String, descriptor: BluetoothGattDescriptor)
+    fun onDescriptorRead(tag: String, descriptor: BluetoothGattDescriptor, value: ByteArray)
 
     fun onNotificationChanged(tag: String, descriptor: BluetoothGattDescriptor, isEnabled: Boolean)
 
@@ -35,6 +41,8 @@ interface IConnection {
 
     companion object {
         val clientCharacteristicConfig = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb")!!
+        /** 未协商时的默认MTU */
+        const val DEFAULT_MTU = 23
 
         /** 普通请求失败  */
         const val REQUEST_FAIL_TYPE_REQUEST_FAILED = 0
@@ -50,6 +58,8 @@ interface IConnection {
         const val REQUEST_FAIL_TYPE_CONNECTION_DISCONNECTED = 9
         const val REQUEST_FAIL_TYPE_CONNECTION_RELEASED = 10
         const val REQUEST_FAIL_TYPE_VALUE_IS_NULL_OR_EMPTY = 11
+        /** 请求被取消 */
+        const val REQUEST_FAIL_TYPE_REQUEST_CANCELLED = 12
 
         //----------连接状态-------------  
         const val STATE_DISCONNECTED = 0
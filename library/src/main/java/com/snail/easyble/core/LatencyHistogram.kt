@@ -0,0 +1,88 @@
+package com.snail.easyble.core
+
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * 延时直方图，单位为微秒。按对数分段，每段再等分16份，相对误差不超过1/16，占用固定内存，记录时无锁、不分配内存
+ *
+ * date: 2026/10/18 19:32
+ */
+class LatencyHistogram internal constructor() {
+    private val counts = AtomicLongArray(BUCKET_COUNT)
+    private val totalCount = AtomicLong()
+    private val totalMicros = AtomicLong()
+    private val maxMicros = AtomicLong()
+
+    internal fun record(micros: Long) {
+        val value = Math.max(0, Math.min(micros, MAX_VALUE))
+        counts.incrementAndGet(indexOf(value))
+        totalCount.incrementAndGet()
+        totalMicros.addAndGet(value)
+        var max = maxMicros.get()
+        while (value > max && !maxMicros.compareAndSet(max, value)) {
+            max = maxMicros.get()
+        }
+    }
+
+    fun snapshot(): Snapshot {
+        val copy = LongArray(BUCKET_COUNT) { counts.get(it) }
+        val count = copy.sum()
+        val max = maxMicros.get()
+        return Snapshot(count, if (count > 0) totalMicros.get() / count else 0, percentile(copy, count, 0.5, max),
+                percentile(copy, count, 0.9, max), percentile(copy, count, 0.99, max), max)
+    }
+
+    /**
+     * 直方图快照，时间单位为微秒
+     */
+    class Snapshot internal constructor(val count: Long, val mean: Long, val p50: Long, val p90: Long, val p99: Long, val max: Long) {
+        override fun toString(): String {
+            return "count=$count, mean=${mean}us, p50=${p50}us, p90=${p90}us, p99=${p99}us, max=${max}us"
+        }
+    }
+
+    private companion object {
+        const val SUB_BUCKET_BITS = 4
+        const val SUB_BUCKET_COUNT = 1 shl SUB_BUCKET_BITS
+        //最大约19小时
+        const val MAX_EXPONENT = 36
+        const val MAX_VALUE = (1L shl (MAX_EXPONENT + 1)) - 1
+        const val BUCKET_COUNT = SUB_BUCKET_COUNT + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT
+
+        fun indexOf(value: Long): Int {
+            if (value < SUB_BUCKET_COUNT) {
+                return value.toInt()
+            }
+            val exponent = 63 - java.lang.Long.numberOfLeadingZeros(value)
+            val shift = exponent - SUB_BUCKET_BITS
+            val sub = (value ushr shift).toInt() - SUB_BUCKET_COUNT
+            return SUB_BUCKET_COUNT + shift * SUB_BUCKET_COUNT + sub
+        }
+
+        //桶内的最大值
+        fun upperBoundOf(index: Int): Long {
+            if (index < SUB_BUCKET_COUNT) {
+                return index.toLong()
+            }
+            val shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT
+            val sub = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_COUNT
+            return ((SUB_BUCKET_COUNT + sub + 1).toLong() shl shift) - 1
+        }
+
+        fun percentile(counts: LongArray, total: Long, p: Double, max: Long): Long {
+            if (total == 0L) {
+                return 0
+            }
+            val rank = Math.ceil(total * p).toLong()
+            var seen = 0L
+            for (i in counts.indices) {
+                seen += counts[i]
+                if (seen >= rank) {
+                    return Math.min(upperBoundOf(i), max)
+                }
+            }
+            return max
+        }
+    }
+}
@@ -7,6 +7,9 @@ package com.snail.easyble.core
  * author: zengfansheng
  */
 data class MethodInfo(val name: String, val valueTypePairs: Array<ValueTypePair>?) {
+    //不为null时优先直接调用，不使用反射
+    internal var invoker: MethodInvoker? = null
+
     override fun equals(other: Any?): Boolean {
         if (this === other) return true
         if (other !is MethodInfo) return false
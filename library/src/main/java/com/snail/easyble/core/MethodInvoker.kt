@@ -0,0 +1,30 @@
+package com.snail.easyble.core
+
+/**
+ * 直接调用回调接口的方法，不使用反射。目标不是[type]的实例时，[MethodPoster]回退到按方法名反射调用
+ *
+ * date: 2026/10/18 21:58
+ */
+internal class MethodInvoker(private val type: Class<*>, 
+                             /** 方法签名，用于查找方法的调用线程，由[signatureOf]生成 */
+                             val signature: String, private val block: (Any) -> Unit) {
+    fun isApplicable(obj: Any) = type.isInstance(obj)
+
+    fun invoke(obj: Any) {
+        block(obj)
+    }
+
+    companion object {
+        fun signatureOf(name: String, vararg paramTypes: Class<*>): String {
+            return paramTypes.joinToString(",", "$name(", ")") { it.name }
+        }
+    }
+}
+
+/**
+ * 为方法信息附加直接调用的方式
+ */
+internal inline fun <reified T> MethodInfo.typed(signature: String, crossinline block: (T) -> Unit): MethodInfo {
+    invoker = MethodInvoker(T::class.java, signature) { block(it as T) }
+    return this
+}
@@ -13,30 +13,110 @@ import java.util.concurrent.ExecutorService
  * date: 2019/1/28 20:47
  * author: zengfansheng
  */
-internal class MethodPoster(private val executorService: ExecutorService, private val mainHandler: Handler) {
+internal class MethodPoster(private val executorService: ExecutorService, private val mainHandler: Handler, private val frameBatcher: FrameBatcher) {
+    private val threadPolicyCache = ThreadPolicyCache()
+    //BleConfig.isSerialBackgroundDispatch为true时，第一次在后台调用时创建
+    private var serialDispatcher: SerialDispatcher? = null
+
     //Callback on different threads by annotation
-    private fun post(method: Method?, runnable: Runnable) {
+    private fun post(method: Method?, obj: Any, valueTypePairs: Array<ValueTypePair>?, runnable: Runnable, onDropped: Runnable? = null) {
         if (method != null) {
             val invokeThreadAnno = method.getAnnotation(InvokeThread::class.java)
-            when (invokeThreadAnno?.value ?: Ble.instance.bleConfig.methodDefaultInvokeThread) {
-                RunOn.MAIN -> {
-                    if (Looper.myLooper() == Looper.getMainLooper()) { //判断是否在主线程
-                        runnable.run()
-                    } else {
-                        mainHandler.post { runnable.run() }
-                    }
+            post(invokeThreadAnno?.value, obj, method.name, valueTypePairs, runnable, onDropped)
+        }
+    }
+
+    /**
+     * @param onDropped 串行通道已满丢弃时执行
+     */
+    private fun post(runOn: RunOn?, obj: Any, methodName: String, valueTypePairs: Array<ValueTypePair>?, runnable: Runnable, onDropped: Runnable? = null) {
+        when (runOn ?: Ble.instance.bleConfig.methodDefaultInvokeThread) {
+            RunOn.MAIN -> {
+                if (Looper.myLooper() == Looper.getMainLooper()) { //判断是否在主线程
+                    runnable.run()
+                } else if (Ble.instance.bleConfig.isMainThreadBatching) {
+                    frameBatcher.post(runnable)
+                } else {
+                    mainHandler.post { runnable.run() }
                 }
-                RunOn.BACKGROUND -> executorService.execute(runnable)
-                else -> runnable.run()
+            }
+            RunOn.BACKGROUND -> if (Ble.instance.bleConfig.isSerialBackgroundDispatch) {
+                getSerialDispatcher().execute(laneKeyOf(obj, valueTypePairs), runnable, isDroppable(methodName), onDropped)
+            } else {
+                executorService.execute(runnable)
+            }
+            else -> runnable.run()
+        }
+    }
+
+    @Synchronized
+    private fun getSerialDispatcher(): SerialDispatcher {
+        var dispatcher = serialDispatcher
+        if (dispatcher == null) {
+            val config = Ble.instance.bleConfig
+            dispatcher = SerialDispatcher(config.serialBackgroundThreadCount, config.serialBackgroundQueueCapacity)
+            serialDispatcher = dispatcher
+        }
+        return dispatcher
+    }
+
+    /**
+     * 释放串行通道的线程，队列中的事件执行完后结束。之后再有后台调用时重新创建
+     */
+    @Synchronized
+    fun shutdown() {
+        serialDispatcher?.shutdown()
+        serialDispatcher = null
+    }
+
+    //只有特征通知在通道满时可以丢弃，连接状态变化、读写结果及请求失败等事件不能丢
+    private fun isDroppable(methodName: String) = methodName == "onCharacteristicChanged"
+
+    //同一观察者收到的同一设备的事件使用同一通道，保证顺序
+    private fun laneKeyOf(obj: Any, valueTypePairs: Array<ValueTypePair>?): Int {
+        var device: Device? = null
+        valueTypePairs?.forEach {
+            if (device == null && it.value is Device) {
+                device = it.value
             }
         }
+        return 31 * System.identityHashCode(obj) + (device?.addr?.hashCode() ?: 0)
+    }
+
+    /**
+     * 方法是否在当前线程直接调用，是则调用方可以不创建[MethodInfo]直接调用，避免分配内存
+     *
+     * @param signature 由[MethodInvoker.signatureOf]生成
+     */
+    fun isPosting(obj: Any, signature: String): Boolean {
+        return (threadPolicyCache.get(obj.javaClass, signature) ?: Ble.instance.bleConfig.methodDefaultInvokeThread) == RunOn.POSTING
+    }
+
+    /**
+     * 预先解析类中方法的调用线程，注册观察者时调用
+     */
+    fun resolveThreadPolicies(clazz: Class<*>) {
+        threadPolicyCache.resolve(clazz)
+    }
+
+    //直接调用，调用线程按类缓存
+    private fun postTyped(obj: Any, methodName: String, invoker: MethodInvoker, valueTypePairs: Array<ValueTypePair>?, afterInvoke: Runnable?) {
+        post(threadPolicyCache.get(obj.javaClass, invoker.signature), obj, methodName, valueTypePairs, Runnable {
+            try {
+                invoker.invoke(obj)
+            } catch (e: Exception) {
+                e.printStackTrace()
+            } finally {
+                afterInvoke?.run()
+            }
+        }, afterInvoke)
     }
 
     fun post(obj: Any, methodName: String, valueTypePairs: Array<ValueTypePair>?) {
         if (valueTypePairs == null || valueTypePairs.isEmpty()) {
             try {
                 val method = obj.javaClass.getMethod(methodName)
-                post(method, Runnable {
+                post(method, obj, valueTypePairs, Runnable {
                     try {
                         method.invoke(obj)
                     } catch (e: Exception) {
@@ -53,7 +133,7 @@ internal class MethodPoster(private val executorService: ExecutorService, privat
             }
             try {
                 val method = obj.javaClass.getMethod(methodName, *paramTypes)
-                post(method, Runnable {
+                post(method, obj, valueTypePairs, Runnable {
                     try {
                         method.invoke(obj, *params)
                     } catch (e: Exception) {
@@ -65,6 +145,43 @@ internal class MethodPoster(private val executorService: ExecutorService, privat
     }
 
     fun post(obj: Any, methodInfo: MethodInfo) {
-        post(obj, methodInfo.name, methodInfo.valueTypePairs)
+        val invoker = methodInfo.invoker
+        if (invoker != null && invoker.isApplicable(obj)) {
+            postTyped(obj, methodInfo.name, invoker, methodInfo.valueTypePairs, null)
+        } else {
+            post(obj, methodInfo.name, methodInfo.valueTypePairs)
+        }
+    }
+
+    /**
+     * 方法调用结束后执行[afterInvoke]，无论调用是否成功。找不到方法时立即执行
+     */
+    fun post(obj: Any, methodInfo: MethodInfo, afterInvoke: Runnable) {
+        val invoker = methodInfo.invoker
+        if (invoker != null && invoker.isApplicable(obj)) {
+            postTyped(obj, methodInfo.name, invoker, methodInfo.valueTypePairs, afterInvoke)
+            return
+        }
+        val valueTypePairs = methodInfo.valueTypePairs ?: emptyArray()
+        val params = arrayOfNulls<Any>(valueTypePairs.size)
+        val paramTypes = arrayOfNulls<Class<*>>(valueTypePairs.size)
+        valueTypePairs.forEachIndexed { i, vt ->
+            params[i] = vt.value
+            paramTypes[i] = vt.valueType
+        }
+        try {
+            val method = obj.javaClass.getMethod(methodInfo.name, *paramTypes)
+            post(method, obj, valueTypePairs, Runnable {
+                try {
+                    method.invoke(obj, *params)
+                } catch (e: Exception) {
+                    e.printStackTrace()
+                } finally {
+                    afterInvoke.run()
+                }
+            }, afterInvoke)
+        } catch (e: NoSuchMethodException) {
+            afterInvoke.run()
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,189 @@
+package com.snail.easyble.core
+
+import java.util.*
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantLock
+
+/**
+ * 单个特征的通知数据流。通知数据在GATT回调线程中放入有界缓冲区，由使用者按自己的速度取出，缓冲区满时按[Overflow]处理，
+ * 不会阻塞回调线程，也不会无限堆积。
+ *
+ * 通过[BaseConnection.openNotificationStream]创建，不再使用时调用[close]。使用协程时可通过[receive]或者[asFlow]挂起读取
+ *
+ * date: 2026/10/18 17:30
+ */
+class NotificationStream internal constructor(private val connection: BaseConnection, val service: UUID, val characteristic: UUID,
+                                              capacity: Int, val overflow: Overflow) {
+    /**
+     * 缓冲区满时的处理方式
+     */
+    enum class Overflow {
+        /** 丢弃新收到的数据 */
+        DROP_NEWEST,
+        /** 丢弃最早的数据 */
+        DROP_OLDEST,
+        /** 只保留最新的一个数据，缓冲区大小固定为1 */
+        KEEP_LATEST
+    }
+
+    /** 缓冲区大小 */
+    val capacity = if (overflow == Overflow.KEEP_LATEST) 1 else Math.max(1, capacity)
+    private val buffer = ArrayDeque<ByteArray>(this.capacity)
+    private val lock = ReentrantLock()
+    private val notEmpty = lock.newCondition()
+    //挂起等待数据的协程，有数据或者关闭时通知一次
+    private var availableListeners: ArrayList<Runnable>? = null
+    @Volatile
+    var isClosed = false
+        private set
+
+    /**
+     * 因缓冲区满而丢弃的数据个数
+     */
+    @Volatile
+    var droppedCount = 0L
+        private set
+
+    //GATT回调线程调用
+    internal fun offer(value: ByteArray) {
+        var listeners: ArrayList<Runnable>? = null
+        lock.lock()
+        try {
+            if (isClosed) {
+                return
+            }
+            if (buffer.size >= capacity) {
+                droppedCount++
+                if (overflow == Overflow.DROP_NEWEST) {
+                    return
+                }
+                buffer.pollFirst()
+            }
+            buffer.addLast(value)
+            notEmpty.signal()
+            listeners = availableListeners
+            availableListeners = null
+        } finally {
+            lock.unlock()
+        }
+        listeners?.forEach { it.run() }
+    }
+
+    /**
+     * 缓冲区为空并且未关闭时登记[listener]，有数据或者关闭时调用一次，否则不登记
+     *
+     * @return 是否已登记
+     */
+    internal fun awaitAvailable(listener: Runnable): Boolean {
+        lock.lock()
+        try {
+            if (buffer.isNotEmpty() || isClosed) {
+                return false
+            }
+            var list = availableListeners
+            if (list == null) {
+                list = ArrayList()
+                availableListeners = list
+            }
+            list.add(listener)
+            return true
+        } finally {
+            lock.unlock()
+        }
+    }
+
+    internal fun removeAvailableListener(listener: Runnable) {
+        lock.lock()
+        try {
+            availableListeners?.remove(listener)
+        } finally {
+            lock.unlock()
+        }
+    }
+
+    /**
+     * 取出最早的数据，没有则立即返回null
+     */
+    fun poll(): ByteArray? {
+        lock.lock()
+        try {
+            return buffer.pollFirst()
+        } finally {
+            lock.unlock()
+        }
+    }
+
+    /**
+     * 取出最早的数据，没有则等待，不要在主线程调用
+     *
+     * @param timeoutMillis 最长等待时长
+     * @return 超时或者流已关闭时返回null
+     */
+    @Throws(InterruptedException::class)
+    fun take(timeoutMillis: Long): ByteArray? {
+        var nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis)
+        lock.lockInterruptibly()
+        try {
+            while (buffer.isEmpty()) {
+                if (isClosed || nanos <= 0) {
+                    return null
+                }
+                nanos = notEmpty.awaitNanos(nanos)
+            }
+            return buffer.pollFirst()
+        } finally {
+            lock.unlock()
+        }
+    }
+
+    /**
+     * 取出所有数据放到列表中
+     *
+     * @return 取出的个数
+     */
+    fun drainTo(list: MutableList<ByteArray>): Int {
+        lock.lock()
+        try {
+            val n = buffer.size
+            while (buffer.isNotEmpty()) {
+                list.add(buffer.pollFirst())
+            }
+            return n
+        } finally {
+            lock.unlock()
+        }
+    }
+
+    /**
+     * 缓冲区中的数据个数
+     */
+    fun size(): Int {
+        lock.lock()
+        try {
+            return buffer.size
+        } finally {
+            lock.unlock()
+        }
+    }
+
+    /**
+     * 关闭数据流，不再接收数据，缓冲区中剩余的数据仍可取出。等待中的[take]返回null
+     */
+    fun close() {
+        var listeners: ArrayList<Runnable>? = null
+        lock.lock()
+        try {
+            if (isClosed) {
+                return
+            }
+            isClosed = true
+            notEmpty.signalAll()
+            listeners = availableListeners
+            availableListeners = null
+        } finally {
+            lock.unlock()
+        }
+        listeners?.forEach { it.run() }
+        connection.removeNotificationStream(this)
+    }
+}
@@ -0,0 +1,98 @@
+package com.snail.easyble.core
+
+import android.os.SystemClock
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicReference
+
+/**
+ * 读请求结果缓存，每个连接一个。key为服务、特征及描述符，有效期由[ConnectionConfig.setReadCacheTtl]按UUID设置。
+ * 特征有写请求在排队或执行时，特征值不缓存也不从缓存读取，避免写之前发出的读把旧值放回缓存
+ *
+ * date: 2026/10/18 21:08
+ */
+internal class ReadCache {
+    private class Entry(val value: ByteArray, val expireTime: Long)
+
+    //一个特征的缓存，包括特征值及其描述符的值
+    private class Slot {
+        val value = AtomicReference<Entry?>()
+        val descriptors = ConcurrentHashMap<UUID, Entry>()
+        //排队中或正在执行的写请求数，修改及放入特征值时对slot加锁
+        @Volatile
+        var pendingWrites = 0
+    }
+
+    //按服务、特征两级查找，收到通知时失效缓存不创建key
+    private val slots = ConcurrentHashMap<UUID, ConcurrentHashMap<UUID, Slot>>()
+
+    /**
+     * 获取未过期的值，返回副本
+     */
+    fun get(service: UUID, characteristic: UUID, descriptor: UUID?): ByteArray? {
+        val slot = slots[service]?.get(characteristic) ?: return null
+        if (descriptor == null && slot.pendingWrites > 0) {
+            return null
+        }
+        val entry = (if (descriptor == null) slot.value.get() else slot.descriptors[descriptor]) ?: return null
+        if (SystemClock.elapsedRealtime() >= entry.expireTime) {
+            if (descriptor == null) {
+                slot.value.compareAndSet(entry, null)
+            } else {
+                slot.descriptors.remove(descriptor, entry)
+            }
+            return null
+        }
+        return entry.value.clone()
+    }
+
+    fun put(service: UUID, characteristic: UUID, descriptor: UUID?, value: ByteArray, ttlMillis: Long) {
+        val slot = slots.getOrPut(service) { ConcurrentHashMap() }.getOrPut(characteristic) { Slot() }
+        val entry = Entry(value.clone(), SystemClock.elapsedRealtime() + ttlMillis)
+        if (descriptor == null) {
+            synchronized(slot) {
+                if (slot.pendingWrites == 0) {
+                    slot.value.set(entry)
+                }
+            }
+        } else {
+            slot.descriptors[descriptor] = entry
+        }
+    }
+
+    fun invalidate(service: UUID, characteristic: UUID, descriptor: UUID?) {
+        val slot = slots[service]?.get(characteristic) ?: return
+        if (descriptor == null) {
+            slot.value.set(null)
+        } else {
+            slot.descriptors.remove(descriptor)
+        }
+    }
+
+    /**
+     * 特征的写请求开始排队，清除缓存的特征值，直到[endWrite]前不再缓存
+     */
+    fun beginWrite(service: UUID, characteristic: UUID) {
+        val slot = slots.getOrPut(service) { ConcurrentHashMap() }.getOrPut(characteristic) { Slot() }
+        synchronized(slot) {
+            slot.pendingWrites++
+            slot.value.set(null)
+        }
+    }
+
+    /**
+     * 特征的写请求已结束，无论成功、失败或取消
+     */
+    fun endWrite(service: UUID, characteristic: UUID) {
+        val slot = slots[service]?.get(characteristic) ?: return
+        synchronized(slot) {
+            if (slot.pendingWrites > 0) {
+                slot.pendingWrites--
+            }
+        }
+    }
+
+    fun clear() {
+        slots.clear()
+    }
+}
@@ -1,5 +1,6 @@
 package com.snail.easyble.core
 
+import android.bluetooth.BluetoothGattCharacteristic
 import androidx.annotation.IntRange
 import com.snail.easyble.util.BleUtils
 import java.util.*
@@ -12,9 +13,71 @@ class Request private constructor(val type: RequestType, val tag: String, val se
                                   internal val callback: Any?, val priority: Int = 0) : Comparable<Request> {
     internal var waitWriteResult = false
     internal var writeDelay = 0
+    //是否在请求队列中等待执行
+    internal var isQueued = false
     //-----used when packeting transmission-----
-    internal var remainQueue: Queue<ByteArray>? = null
-    internal var sendingBytes: ByteArray? = null
+    internal var packageSize = 0
+    //已成功写入的字节数，也是下一包在value中的起始位置
+    internal var writeOffset = 0L
+    //等待写入结果时，是否有已发出还未回调的包
+    internal var isWaitingCallback = false
+    internal var isPaused = false
+    internal var startTime = 0L
+    internal var pausedTime = 0L
+    private var pauseStartTime = 0L
+    internal var gattCharacteristic: BluetoothGattCharacteristic? = null
+    //使用句柄提交时，执行时不再查找特征
+    internal var handle: CharacteristicHandle? = null
+    //写入时确定的写入模式，分包时不再重复查找
+    internal var writeType = BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT
+    //-----used when streaming write-----
+    internal var writeWindow = 0
+    internal var inFlightCount = 0
+    internal var retryTimes = 0
+    //等待写入回调时，当前包的发出时间
+    internal var packageSentTime = 0L
+    //不等待回调时，已发出还未回调的包的发出时间，先进先出，用于计算往返时长
+    private var sentTimes: LongArray? = null
+    private var sentHead = 0
+    private var sentCount = 0
+    //-----used when writing from source-----
+    internal var source: WriteSource? = null
+    //已从数据源读出还未写入成功的包
+    internal var pendingPackage: ByteArray? = null
+    //从数据源读取使用的缓冲区，每个请求独立，后台预读时不与其他请求冲突
+    internal var sourceBuffer: ByteArray? = null
+    //数据源已读到末尾
+    internal var isSourceEnd = false
+    //后台正在读取数据源
+    internal var isReadingSource = false
+    //发送时下一包还未读出，读出后继续发送
+    internal var isWaitingSource = false
+    //-----used when coalescing-----
+    internal var mergeKey: String? = null
+    //合并到此请求的其他请求，共用一次GATT操作的结果
+    internal var mergedRequests: ArrayList<Request>? = null
+    //写请求被合并前的原始数据
+    internal var originValue: ByteArray? = null
+    //合并到的目标请求
+    internal var mergeTarget: Request? = null
+    //-----used when collecting metrics-----
+    internal var enqueueTime = 0L
+    internal var executeTime = 0L
+    //失败类型，成功时为-1
+    internal var failType = -1
+    //已计入统计
+    internal var isMetricsRecorded = false
+    //-----used when cancelling-----
+    //结果已通知，之后的结果不再通知
+    internal var isFinished = false
+    //正在执行时被取消，等已发出的GATT操作回调后才让出队列，回调的结果丢弃
+    internal var isAborted = false
+    //写请求已计入读缓存的待完成写，结束时需扣除
+    internal var isWritePending = false
+    //-----used when batching-----
+    internal var resultListener: RequestResultListener? = null
+    //批处理中的下一步，本步成功后紧接着执行
+    internal var next: Request? = null
 
     enum class RequestType {
         ENABLE_NOTIFICATION, ENABLE_INDICATION, DISABLE_NOTIFICATION, DISABLE_INDICATION, READ_CHARACTERISTIC, READ_DESCRIPTOR, READ_RSSI, WRITE_CHARACTERISTIC, CHANGE_MTU, READ_PHY, SET_PREFERRED_PHY
@@ -25,6 +88,50 @@ class Request private constructor(val type: RequestType, val tag: String, val se
         return other.priority.compareTo(priority)
     }
     
+    //是否还有未发出的包，数据源未读到末尾时也算有
+    internal fun hasRemaining() = if (source != null) pendingPackage != null || !isSourceEnd else writeOffset < (value?.size ?: 0)
+
+    internal fun pause() {
+        isPaused = true
+        pauseStartTime = System.nanoTime()
+    }
+
+    internal fun resume() {
+        isPaused = false
+        pausedTime += System.nanoTime() - pauseStartTime
+    }
+
+    //记录包的发出时间，已满时丢弃最早的（回调丢失）
+    internal fun onPackageSent(time: Long, capacity: Int) {
+        var times = sentTimes
+        if (times == null) {
+            times = LongArray(Math.max(capacity, 1))
+            sentTimes = times
+        }
+        if (sentCount == times.size) {
+            sentHead = (sentHead + 1) % times.size
+            sentCount--
+        }
+        times[(sentHead + sentCount) % times.size] = time
+        sentCount++
+    }
+
+    //取出最早发出的包到现在的时长，没有记录时返回0
+    internal fun takeRtt(now: Long): Long {
+        val times = sentTimes
+        if (times == null || sentCount == 0) {
+            return 0
+        }
+        val time = times[sentHead]
+        sentHead = (sentHead + 1) % times.size
+        sentCount--
+        return now - time
+    }
+
+    internal fun closeSource() {
+        source?.close()
+    }
+
     companion object {
 
         @JvmOverloads
@@ -68,6 +175,12 @@ class Request private constructor(val type: RequestType, val tag: String, val se
             return Request(RequestType.WRITE_CHARACTERISTIC, tag, service, characteristic, null, value, callback, priority)
         }
 
+        internal fun newWriteStreamRequest(tag: String, service: UUID, characteristic: UUID, source: WriteSource, callback: Any?, priority: Int): Request {
+            val request = Request(RequestType.WRITE_CHARACTERISTIC, tag, service, characteristic, null, null, callback, priority)
+            request.source = source
+            return request
+        }
+
         @JvmOverloads
         internal fun newReadRssiRequest(tag: String, callback: Any? = null, priority: Int): Request {
             return Request(RequestType.READ_RSSI, tag, null, null, null, null, callback, priority)
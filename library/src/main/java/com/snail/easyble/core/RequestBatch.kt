@@ -0,0 +1,104 @@
+package com.snail.easyble.core
+
+import android.os.Build
+import androidx.annotation.IntRange
+import androidx.annotation.RequiresApi
+import java.util.*
+
+/**
+ * 请求批处理。批处理中的请求按添加顺序连续执行，中间不会插入其他请求，全部完成或者某一步失败后通过一个回调通知所有步骤的结果。
+ * 同一个批处理可重复提交
+ *
+ * date: 2026/10/18 16:24
+ */
+class RequestBatch {
+    private val steps = ArrayList<(String, Int) -> Request>()
+
+    /**
+     * 步骤数
+     */
+    val size: Int
+        get() = steps.size
+
+    fun readCharacteristic(service: UUID, characteristic: UUID): RequestBatch {
+        steps.add { tag, priority -> Request.newReadCharacteristicRequest(tag, service, characteristic, null, priority) }
+        return this
+    }
+
+    /**
+     * @param value 不能为空
+     */
+    fun writeCharacteristic(service: UUID, characteristic: UUID, value: ByteArray): RequestBatch {
+        require(value.isNotEmpty()) { "value is empty" }
+        steps.add { tag, priority -> Request.newWriteCharacteristicRequest(tag, service, characteristic, value, null, priority) }
+        return this
+    }
+
+    fun readDescriptor(service: UUID, characteristic: UUID, descriptor: UUID): RequestBatch {
+        steps.add { tag, priority -> Request.newReadDescriptorRequest(tag, service, characteristic, descriptor, null, priority) }
+        return this
+    }
+
+    fun enableNotification(service: UUID, characteristic: UUID): RequestBatch {
+        steps.add { tag, priority -> Request.newEnableNotificationRequest(tag, service, characteristic, null, priority) }
+        return this
+    }
+
+    fun disableNotification(service: UUID, characteristic: UUID): RequestBatch {
+        steps.add { tag, priority -> Request.newDisableNotificationRequest(tag, service, characteristic, null, priority) }
+        return this
+    }
+
+    fun enableIndication(service: UUID, characteristic: UUID): RequestBatch {
+        steps.add { tag, priority -> Request.newEnableIndicationRequest(tag, service, characteristic, null, priority) }
+        return this
+    }
+
+    fun disableIndication(service: UUID, characteristic: UUID): RequestBatch {
+        steps.add { tag, priority -> Request.newDisableIndicationRequest(tag, service, characteristic, null, priority) }
+        return this
+    }
+
+    fun readRssi(): RequestBatch {
+        steps.add { tag, priority -> Request.newReadRssiRequest(tag, null, priority) }
+        return this
+    }
+
+    @RequiresApi(Build.VERSION_CODES.LOLLIPOP)
+    fun changeMtu(@IntRange(from = 23, to = 517) mtu: Int): RequestBatch {
+        steps.add { tag, priority -> Request.newChangeMtuRequest(tag, mtu, null, priority) }
+        return this
+    }
+
+    @RequiresApi(Build.VERSION_CODES.O)
+    fun readPhy(): RequestBatch {
+        steps.add { tag, priority -> Request.newReadPhyRequest(tag, null, priority) }
+        return this
+    }
+
+    @RequiresApi(Build.VERSION_CODES.O)
+    fun setPreferredPhy(txPhy: Int, rxPhy: Int, phyOptions: Int): RequestBatch {
+        steps.add { tag, priority -> Request.newSetPreferredPhyRequest(tag, txPhy, rxPhy, phyOptions, null, priority) }
+        return this
+    }
+
+    internal fun createRequests(tag: String, priority: Int): List<Request> {
+        return steps.map { it(tag, priority) }
+    }
+
+    /**
+     * 单个步骤的结果
+     *
+     * @param index 步骤在批处理中的位置
+     * @param isSuccess 是否成功
+     * @param failType 失败类型，成功时为0
+     * @param value 成功时的结果。读特征、读描述符、写特征为ByteArray，开关通知为Boolean，修改MTU、读信号强度为Int，
+     * 读物理层、设置物理层为IntArray(txPhy, rxPhy)，失败时为null
+     */
+    class StepResult internal constructor(val index: Int, val type: Request.RequestType, val service: UUID?, val characteristic: UUID?,
+                                          val descriptor: UUID?, val isSuccess: Boolean, val failType: Int, val value: Any?) {
+        override fun toString(): String {
+            return "StepResult(index=$index, type=$type, isSuccess=$isSuccess, failType=$failType)"
+        }
+    }
+}
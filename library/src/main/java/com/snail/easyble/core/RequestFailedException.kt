@@ -0,0 +1,10 @@
+package com.snail.easyble.core
+
+/**
+ * 挂起方式执行的请求失败时抛出
+ *
+ * date: 2026/10/18 17:05
+ */
+class RequestFailedException(val requestType: Request.RequestType,
+                             /** 失败类型，[IConnection.REQUEST_FAIL_TYPE_REQUEST_FAILED]等 */
+                             val failType: Int) : Exception("request failed! [type: $requestType, failType: $failType]")
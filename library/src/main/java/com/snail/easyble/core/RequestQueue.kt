@@ -0,0 +1,142 @@
+package com.snail.easyble.core
+
+import java.util.*
+
+/**
+ * 请求调度队列。按优先级分道，同一优先级内先进先出，优先级高的先出队。
+ *
+ * 入队O(log P)，出队O(log P)，P为队列中不同优先级的个数，通常只有一两个。按类型移除时只访问该类型的请求，
+ * 被移除的请求只做标记，出队时跳过。
+ *
+ * 非线程安全，由[BaseConnection]加锁访问
+ *
+ * date: 2026/10/18 10:12
+ */
+internal class RequestQueue {
+    //key为优先级，降序
+    private val lanes = TreeMap<Int, ArrayDeque<Request>>(Collections.reverseOrder())
+    private val typeIndex = EnumMap<Request.RequestType, LinkedHashSet<Request>>(Request.RequestType::class.java)
+
+    /**
+     * 队列中有效请求的数量
+     */
+    var size = 0
+        private set
+
+    fun isEmpty() = size == 0
+
+    fun add(request: Request) {
+        var lane = lanes[request.priority]
+        if (lane == null) {
+            lane = ArrayDeque()
+            lanes[request.priority] = lane
+        }
+        lane.addLast(request)
+        var set = typeIndex[request.type]
+        if (set == null) {
+            set = LinkedHashSet()
+            typeIndex[request.type] = set
+        }
+        set.add(request)
+        request.isQueued = true
+        size++
+    }
+
+    /**
+     * 取出优先级最高的请求，没有则返回null
+     */
+    fun poll(): Request? {
+        while (size > 0) {
+            val entry = lanes.firstEntry() ?: break
+            val lane = entry.value
+            val request = lane.pollFirst()
+            if (lane.isEmpty()) {
+                lanes.remove(entry.key)
+            }
+            if (request != null && request.isQueued) {
+                detach(request)
+                return request
+            }
+        }
+        return null
+    }
+
+    /**
+     * 移除指定请求，只做标记，出队时跳过
+     *
+     * @return 请求在队列中时返回true
+     */
+    fun remove(request: Request): Boolean {
+        if (!request.isQueued) {
+            return false
+        }
+        detach(request)
+        if (size == 0) {
+            lanes.clear()
+        }
+        return true
+    }
+
+    /**
+     * 返回指定优先级中最后入队的请求，没有则返回null
+     */
+    fun peekLast(priority: Int): Request? {
+        val request = lanes[priority]?.peekLast()
+        return if (request != null && request.isQueued) request else null
+    }
+
+    /**
+     * 移除指定类型的所有请求
+     *
+     * @return 被移除的请求，按入队顺序
+     */
+    fun removeByType(type: Request.RequestType): List<Request> {
+        val set = typeIndex.remove(type) ?: return emptyList()
+        val list = ArrayList<Request>(set.size)
+        set.forEach {
+            it.isQueued = false
+            size--
+            list.add(it)
+        }
+        if (size == 0) {
+            lanes.clear()
+        }
+        return list
+    }
+
+    /**
+     * 按出队顺序返回所有请求的快照
+     */
+    fun toList(): List<Request> {
+        val list = ArrayList<Request>(size)
+        lanes.values.forEach { lane ->
+            lane.forEach {
+                if (it.isQueued) {
+                    list.add(it)
+                }
+            }
+        }
+        return list
+    }
+
+    fun clear() {
+        lanes.values.forEach { lane ->
+            lane.forEach { it.isQueued = false }
+        }
+        lanes.clear()
+        typeIndex.clear()
+        size = 0
+    }
+
+    private fun detach(request: Request) {
+        request.isQueued = false
+        size--
+        val set = typeIndex[request.type]
+        if (set != null) {
+            set.remove(request)
+            if (set.isEmpty()) {
+                typeIndex.remove(request.type)
+            }
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.snail.easyble.core
+
+/**
+ * 库内部使用的请求结果监听。设置后请求结果直接在GATT回调线程中通知，不经过[MethodPoster]，也不再回调请求的callback
+ *
+ * date: 2026/10/18 16:20
+ */
+internal interface RequestResultListener {
+    /**
+     * @param value 请求结果，类型见[RequestBatch.StepResult.value]
+     */
+    fun onRequestSucceeded(request: Request, value: Any?)
+
+    fun onRequestFailed(request: Request, failType: Int)
+}
@@ -18,6 +18,7 @@ import android.text.TextUtils
 import android.util.Log
 import android.util.SparseArray
 import androidx.core.content.ContextCompat
+import com.snail.easyble.callback.BatchScanListener
 import com.snail.easyble.callback.ScanListener
 import com.snail.easyble.util.BleLogger
 import com.snail.easyble.util.BleUtils
@@ -29,7 +30,7 @@ import com.snail.easyble.util.BleUtils
  * date: 2018/12/19 20:11
  * author: zengfansheng
  */
-internal class Scanner(private val bluetoothAdapter: BluetoothAdapter, private val mainThreadHandler: Handler) {
+internal class Scanner(private val bluetoothAdapter: BluetoothAdapter, private val mainThreadHandler: Handler, private val frameBatcher: FrameBatcher) {
     private var isScanning = false
     private var bleScanner: BluetoothLeScanner? = null
     private var scanCallback: ScanCallback? = null
@@ -37,6 +38,9 @@ internal class Scanner(private val bluetoothAdapter: BluetoothAdapter, private v
     private val scanListeners = ArrayList<ScanListener>()
     private var internalScanListener: InternalScanListener? = null
     private var proxyBluetoothProfiles = SparseArray<BluetoothProfile>()
+    //按帧批量回调时，当前未结束的一批设备。每批作为一项进入FrameBatcher队列，开始、停止等事件结束当前批次
+    private val batchLock = Any()
+    private var pendingBatch: ArrayList<Device>? = null
 
     //位置服务是否开户
     private fun isLocationEnabled(context: Context): Boolean {
@@ -77,15 +81,49 @@ internal class Scanner(private val bluetoothAdapter: BluetoothAdapter, private v
     }
 
     private fun handleScanCallback(start: Boolean, device: Device?, errorCode: Int, errorMsg: String) {
-        mainThreadHandler.post {
-            for (listener in scanListeners) {
-                when {
-                    device != null -> listener.onScanResult(device)
-                    start -> listener.onScanStart()
-                    errorCode >= 0 -> listener.onScanError(errorCode, errorMsg)
-                    else -> listener.onScanStop()
+        if (Ble.instance.bleConfig.isMainThreadBatching) {
+            //开始、停止等事件先结束当前批次再入队，之后的设备进入新批次，保证与搜索结果的先后顺序
+            synchronized(batchLock) {
+                if (device != null) {
+                    val batch = pendingBatch ?: ArrayList<Device>().also {
+                        pendingBatch = it
+                        frameBatcher.post(Runnable { deliverBatch(it) })
+                    }
+                    batch.add(device)
+                } else {
+                    pendingBatch = null
+                    frameBatcher.post(Runnable { dispatchScanCallback(start, null, errorCode, errorMsg) })
                 }
             }
+        } else {
+            mainThreadHandler.post { dispatchScanCallback(start, device, errorCode, errorMsg) }
+        }
+    }
+
+    private fun dispatchScanCallback(start: Boolean, device: Device?, errorCode: Int, errorMsg: String) {
+        for (listener in scanListeners) {
+            when {
+                device != null -> listener.onScanResult(device)
+                start -> listener.onScanStart()
+                errorCode >= 0 -> listener.onScanError(errorCode, errorMsg)
+                else -> listener.onScanStop()
+            }
+        }
+    }
+
+    //一次回调一批设备，结束批次后不会再有设备加入
+    private fun deliverBatch(devices: ArrayList<Device>) {
+        synchronized(batchLock) {
+            if (pendingBatch === devices) {
+                pendingBatch = null
+            }
+        }
+        for (listener in scanListeners) {
+            if (listener is BatchScanListener) {
+                listener.onScanResults(devices)
+            } else {
+                devices.forEach { listener.onScanResult(it) }
+            }
         }
     }
 
@@ -0,0 +1,94 @@
+package com.snail.easyble.core
+
+import android.util.Log
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * 固定数量的单线程通道。同一key的任务总在同一通道按提交顺序执行，不同key分散到各通道并行执行。
+ * 每个通道的等待队列有上限。满时可丢弃的新任务直接丢弃；其他任务最多等待[NON_DROPPABLE_WAIT_MILLIS]，仍没有空位时也丢弃，
+ * 不会长时间阻塞提交任务的GATT回调线程、连接线程或主线程
+ *
+ * date: 2026/10/18 22:40
+ */
+internal class SerialDispatcher(threadCount: Int, queueCapacity: Int) {
+    private val laneThreads = arrayOfNulls<Thread>(Math.max(threadCount, 1))
+    private val lanes = Array(laneThreads.size) { i ->
+        ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, ArrayBlockingQueue<Runnable>(Math.max(queueCapacity, 1)), ThreadFactory {
+            val thread = Thread(it, "easyble-serial-$i")
+            laneThreads[i] = thread
+            thread
+        })
+    }
+    private val droppedCount = AtomicLong()
+
+    init {
+        //不可丢弃的任务直接放入队列，需要线程已启动
+        lanes.forEach { it.prestartCoreThread() }
+    }
+
+    /**
+     * @param isDroppable 通道满时是否可以立即丢弃。为false时最多等待[NON_DROPPABLE_WAIT_MILLIS]，
+     * 在本通道的任务中提交时不等待，队列满则直接执行（等待会死锁）
+     * @param onDropped 任务被丢弃时在当前线程执行，用于释放任务持有的资源
+     */
+    fun execute(key: Int, runnable: Runnable, isDroppable: Boolean, onDropped: Runnable?) {
+        val index = (key and Int.MAX_VALUE) % lanes.size
+        val lane = lanes[index]
+        if (lane.isShutdown) {
+            onDropped?.run()
+            return
+        }
+        if (!isDroppable) {
+            //先入队，保证排在同一通道已有任务之后
+            if (lane.queue.offer(runnable)) {
+                return
+            }
+            if (Thread.currentThread() === laneThreads[index]) {
+                //在本通道的任务中产生的事件，队列满时等待会死锁，直接执行
+                runnable.run()
+                return
+            }
+            try {
+                if (lane.queue.offer(runnable, NON_DROPPABLE_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    return
+                }
+            } catch (e: InterruptedException) {
+                Thread.currentThread().interrupt()
+            }
+            onDropped?.run()
+            logDropped()
+            return
+        }
+        try {
+            lane.execute(runnable)
+        } catch (e: RejectedExecutionException) {
+            onDropped?.run()
+            logDropped()
+        }
+    }
+
+    private fun logDropped() {
+        val count = droppedCount.incrementAndGet()
+        //避免刷屏，每丢弃一批输出一次
+        if (count == 1L || count % 100 == 0L) {
+            Ble.instance.logger.handleLog(Log.WARN, "serial dispatch queue is full, event dropped! [total dropped: $count]")
+        }
+    }
+
+    /**
+     * 不再接收新任务，已在队列中的任务执行完后线程结束
+     */
+    fun shutdown() {
+        lanes.forEach { it.shutdown() }
+    }
+
+    companion object {
+        /** 不可丢弃的任务在通道满时最多等待的时长 */
+        const val NON_DROPPABLE_WAIT_MILLIS = 50L
+    }
+}
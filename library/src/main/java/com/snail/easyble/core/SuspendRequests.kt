@@ -0,0 +1,162 @@
+package com.snail.easyble.core
+
+import android.os.Build
+import androidx.annotation.IntRange
+import androidx.annotation.RequiresApi
+import kotlinx.coroutines.FlowPreview
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.suspendCancellableCoroutine
+import java.util.*
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.coroutines.resume
+import kotlin.coroutines.resumeWithException
+
+/*
+ * 请求的挂起函数版本。结果在GATT回调中直接恢复协程，不经过反射分发，也不需要用tag匹配结果。
+ * 请求失败时抛出[RequestFailedException]，协程被取消时只取消这一个请求并从队列中移除。
+ * 每次调用使用单独的内部tag，[BaseConnection.cancelRequests]按tag取消时不会影响其他挂起中的请求。
+ * 另有[NotificationStream]的挂起读取及[Flow]形式。
+ *
+ * 需要依赖kotlinx-coroutines-core
+ *
+ * date: 2026/10/18 17:08
+ */
+
+private val suspendTagSequence = AtomicLong()
+
+private fun nextSuspendTag() = "easyble-suspend-${suspendTagSequence.incrementAndGet()}"
+
+private suspend fun <T> BaseConnection.await(request: Request): T {
+    return suspendCancellableCoroutine { cont ->
+        val handle = enqueue(request, object : RequestResultListener {
+            override fun onRequestSucceeded(request: Request, value: Any?) {
+                //已取消或者已恢复时不能再恢复
+                if (cont.isActive) {
+                    @Suppress("UNCHECKED_CAST")
+                    cont.resume(value as T)
+                }
+            }
+
+            override fun onRequestFailed(request: Request, failType: Int) {
+                if (cont.isActive) {
+                    cont.resumeWithException(RequestFailedException(request.type, failType))
+                }
+            }
+        })
+        if (handle != null) {
+            cont.invokeOnCancellation { cancelRequest(handle) }
+        }
+    }
+}
+
+/**
+ * @return 读取到的特征值
+ */
+suspend fun BaseConnection.awaitReadCharacteristic(service: UUID, characteristic: UUID, priority: Int = 0): ByteArray {
+    return await(Request.newReadCharacteristicRequest(nextSuspendTag(), service, characteristic, null, priority))
+}
+
+/**
+ * 写入特征，数据超过包大小时自动分包
+ */
+suspend fun BaseConnection.awaitWriteCharacteristic(service: UUID, characteristic: UUID, value: ByteArray, priority: Int = 0) {
+    if (value.isEmpty()) {
+        throw RequestFailedException(Request.RequestType.WRITE_CHARACTERISTIC, IConnection.REQUEST_FAIL_TYPE_VALUE_IS_NULL_OR_EMPTY)
+    }
+    await<ByteArray>(Request.newWriteCharacteristicRequest(nextSuspendTag(), service, characteristic, value, null, priority))
+}
+
+/**
+ * @return 读取到的描述符的值
+ */
+suspend fun BaseConnection.awaitReadDescriptor(service: UUID, characteristic: UUID, descriptor: UUID, priority: Int = 0): ByteArray {
+    return await(Request.newReadDescriptorRequest(nextSuspendTag(), service, characteristic, descriptor, null, priority))
+}
+
+suspend fun BaseConnection.awaitEnableNotification(service: UUID, characteristic: UUID, priority: Int = 0) {
+    await<Boolean>(Request.newEnableNotificationRequest(nextSuspendTag(), service, characteristic, null, priority))
+}
+
+suspend fun BaseConnection.awaitDisableNotification(service: UUID, characteristic: UUID, priority: Int = 0) {
+    await<Boolean>(Request.newDisableNotificationRequest(nextSuspendTag(), service, characteristic, null, priority))
+}
+
+suspend fun BaseConnection.awaitEnableIndication(service: UUID, characteristic: UUID, priority: Int = 0) {
+    await<Boolean>(Request.newEnableIndicationRequest(nextSuspendTag(), service, characteristic, null, priority))
+}
+
+suspend fun BaseConnection.awaitDisableIndication(service: UUID, characteristic: UUID, priority: Int = 0) {
+    await<Boolean>(Request.newDisableIndicationRequest(nextSuspendTag(), service, characteristic, null, priority))
+}
+
+/**
+ * @return 协商后的MTU
+ */
+@RequiresApi(Build.VERSION_CODES.LOLLIPOP)
+suspend fun BaseConnection.awaitChangeMtu(@IntRange(from = 23, to = 517) mtu: Int, priority: Int = 0): Int {
+    return await(Request.newChangeMtuRequest(nextSuspendTag(), mtu, null, priority))
+}
+
+/**
+ * @return 信号强度
+ */
+suspend fun BaseConnection.awaitReadRssi(priority: Int = 0): Int {
+    return await(Request.newReadRssiRequest(nextSuspendTag(), null, priority))
+}
+
+/**
+ * @return IntArray(txPhy, rxPhy)
+ */
+@RequiresApi(Build.VERSION_CODES.O)
+suspend fun BaseConnection.awaitReadPhy(priority: Int = 0): IntArray {
+    return await(Request.newReadPhyRequest(nextSuspendTag(), null, priority))
+}
+
+/**
+ * @return 更新后的IntArray(txPhy, rxPhy)
+ */
+@RequiresApi(Build.VERSION_CODES.O)
+suspend fun BaseConnection.awaitSetPreferredPhy(txPhy: Int, rxPhy: Int, phyOptions: Int, priority: Int = 0): IntArray {
+    return await(Request.newSetPreferredPhyRequest(nextSuspendTag(), txPhy, rxPhy, phyOptions, null, priority))
+}
+
+/**
+ * 取出最早的数据，没有则挂起等待，不占用线程
+ *
+ * @return 数据流已关闭并且缓冲区已空时返回null
+ */
+suspend fun NotificationStream.receive(): ByteArray? {
+    while (true) {
+        val value = poll()
+        if (value != null) {
+            return value
+        }
+        if (isClosed) {
+            return poll()
+        }
+        suspendCancellableCoroutine<Unit> { cont ->
+            val listener = Runnable {
+                if (cont.isActive) {
+                    cont.resume(Unit)
+                }
+            }
+            if (awaitAvailable(listener)) {
+                cont.invokeOnCancellation { removeAvailableListener(listener) }
+            } else {
+                cont.resume(Unit)
+            }
+        }
+    }
+}
+
+/**
+ * 以[Flow]的形式收集数据流中的数据，数据流关闭并取完后结束。同一数据流被多处收集时，每个数据只被其中一处收到
+ */
+@FlowPreview
+fun NotificationStream.asFlow(): Flow<ByteArray> = flow {
+    while (true) {
+        val value = receive() ?: break
+        emit(value)
+    }
+}
@@ -0,0 +1,39 @@
+package com.snail.easyble.core
+
+import com.snail.easyble.annotation.InvokeThread
+import com.snail.easyble.annotation.RunOn
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * 按类缓存方法上[InvokeThread]指定的调用线程。每个类只在第一次使用时扫描一次公开方法
+ *
+ * date: 2026/10/18 22:04
+ */
+internal class ThreadPolicyCache {
+    private val cache = ConcurrentHashMap<Class<*>, Map<String, RunOn>>()
+
+    /**
+     * 获取方法指定的调用线程，未指定时返回null
+     *
+     * @param signature 由[MethodInvoker.signatureOf]生成
+     */
+    fun get(clazz: Class<*>, signature: String): RunOn? {
+        return resolve(clazz)[signature]
+    }
+
+    fun resolve(clazz: Class<*>): Map<String, RunOn> {
+        var policies = cache[clazz]
+        if (policies == null) {
+            val map = HashMap<String, RunOn>()
+            clazz.methods.forEach {
+                val annotation = it.getAnnotation(InvokeThread::class.java)
+                if (annotation != null) {
+                    map[MethodInvoker.signatureOf(it.name, *it.parameterTypes)] = annotation.value
+                }
+            }
+            policies = if (map.isEmpty()) emptyMap() else map
+            cache.putIfAbsent(clazz, policies)
+        }
+        return policies
+    }
+}
@@ -0,0 +1,62 @@
+package com.snail.easyble.core
+
+/**
+ * 分包写入的自适应节奏控制，每个连接一个。根据写入回调的往返时长及缓冲区满、写入失败、超时等拥塞信号，
+ * 按加性减、乘性增调整包间隔，按加性增、乘性减调整流式写入的窗口
+ *
+ * date: 2026/10/18 20:46
+ */
+internal class WritePacer(initialDelayMillis: Int, private val maxWindow: Int) {
+    private var delayMillis = Math.max(initialDelayMillis, 0).toFloat()
+    private var window = Math.max(maxWindow, 1).toFloat()
+    //平滑往返时长及观察到的最小往返时长，单位为纳秒
+    private var smoothedRtt = 0L
+    private var minRtt = Long.MAX_VALUE
+    private var congestionCount = 0L
+
+    val packageDelayMillis: Int
+        @Synchronized get() = Math.round(delayMillis)
+
+    val windowSize: Int
+        @Synchronized get() = window.toInt()
+
+    /**
+     * 一包写入成功
+     *
+     * @param rtt 发出到回调的时长，单位为纳秒，没有采样时为0，此时不调整
+     */
+    @Synchronized
+    fun onPackageAcked(rtt: Long) {
+        //没有往返时长无法判断对端是否积压
+        if (rtt <= 0) {
+            return
+        }
+        smoothedRtt = if (smoothedRtt == 0L) rtt else smoothedRtt + (rtt - smoothedRtt) / 8
+        minRtt = Math.min(minRtt, rtt)
+        //往返时长明显变长说明对端开始积压，不再缩短间隔或者扩大窗口
+        if (smoothedRtt < minRtt * 2) {
+            delayMillis = Math.max(0f, delayMillis - DELAY_DECREASE_MILLIS)
+            window = Math.min(maxWindow.toFloat(), window + 1 / window)
+        }
+    }
+
+    /**
+     * 缓冲区满、写入失败或超时
+     */
+    @Synchronized
+    fun onCongestion() {
+        congestionCount++
+        delayMillis = Math.min(MAX_DELAY_MILLIS, Math.max(1f, delayMillis * 2))
+        window = Math.max(1f, window / 2)
+    }
+
+    @Synchronized
+    fun snapshot(): WritePacing {
+        return WritePacing(packageDelayMillis, windowSize, smoothedRtt / 1000, if (minRtt == Long.MAX_VALUE) 0 else minRtt / 1000, congestionCount)
+    }
+
+    private companion object {
+        const val DELAY_DECREASE_MILLIS = 0.25f
+        const val MAX_DELAY_MILLIS = 200f
+    }
+}
@@ -0,0 +1,19 @@
+package com.snail.easyble.core
+
+/**
+ * 自适应写入节奏的当前值
+ *
+ * @param packageDelayMillis 当前的包间隔
+ * @param windowSize 当前的流式写入窗口，未启用流式写入时无意义
+ * @param smoothedRttMicros 等待写入回调时的平滑往返时长，单位为微秒
+ * @param minRttMicros 观察到的最小往返时长，单位为微秒
+ * @param congestionCount 缓冲区满、写入失败及超时的次数
+ *
+ * date: 2026/10/18 20:52
+ */
+class WritePacing internal constructor(val packageDelayMillis: Int, val windowSize: Int, val smoothedRttMicros: Long, val minRttMicros: Long,
+                                       val congestionCount: Long) {
+    override fun toString(): String {
+        return "packageDelay=${packageDelayMillis}ms, window=$windowSize, srtt=${smoothedRttMicros}us, minRtt=${minRttMicros}us, congestion=$congestionCount"
+    }
+}
@@ -0,0 +1,132 @@
+package com.snail.easyble.core
+
+import java.io.File
+import java.io.IOException
+import java.io.InputStream
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.channels.ReadableByteChannel
+
+/**
+ * 流式写入的数据源，写入时按包从数据源按需读取，不需要把全部数据放到内存里
+ *
+ * date: 2026/10/18 14:05
+ */
+abstract class WriteSource {
+    /**
+     * 数据总长度，未知时返回-1
+     */
+    abstract fun length(): Long
+
+    /**
+     * 读取数据到缓冲区
+     *
+     * @return 实际读取的字节数，没有更多数据时返回-1。暂时没有数据时可返回0，稍后会再次读取
+     */
+    @Throws(IOException::class)
+    abstract fun read(buffer: ByteArray, offset: Int, len: Int): Int
+
+    /**
+     * 写入结束后（成功或失败）调用，释放资源
+     */
+    open fun close() {}
+
+    private class InputStreamSource(private val input: InputStream, private val length: Long) : WriteSource() {
+        override fun length() = length
+
+        override fun read(buffer: ByteArray, offset: Int, len: Int) = input.read(buffer, offset, len)
+
+        override fun close() {
+            try {
+                input.close()
+            } catch (ignored: IOException) {}
+        }
+    }
+
+    private class ChannelSource(private val channel: ReadableByteChannel, private val length: Long) : WriteSource() {
+        private var wrapped: ByteBuffer? = null
+        private var wrappedArray: ByteArray? = null
+
+        override fun length() = length
+
+        override fun read(buffer: ByteArray, offset: Int, len: Int): Int {
+            //同一个数组只包装一次
+            var bb = wrapped
+            if (bb == null || wrappedArray !== buffer) {
+                bb = ByteBuffer.wrap(buffer)
+                wrapped = bb
+                wrappedArray = buffer
+            }
+            bb!!.limit(offset + len)
+            bb.position(offset)
+            return channel.read(bb)
+        }
+
+        override fun close() {
+            try {
+                channel.close()
+            } catch (ignored: IOException) {}
+        }
+    }
+
+    private class ByteBufferSource(private val buffer: ByteBuffer, private val closeable: FileChannel?) : WriteSource() {
+        private val length = buffer.remaining().toLong()
+
+        override fun length() = length
+
+        override fun read(buffer: ByteArray, offset: Int, len: Int): Int {
+            val remaining = this.buffer.remaining()
+            if (remaining == 0) {
+                return -1
+            }
+            val n = Math.min(len, remaining)
+            this.buffer.get(buffer, offset, n)
+            return n
+        }
+
+        override fun close() {
+            try {
+                closeable?.close()
+            } catch (ignored: IOException) {}
+        }
+    }
+
+    companion object {
+        /**
+         * @param length 数据总长度，未知时传-1，只用于进度回调
+         */
+        @JvmStatic
+        @JvmOverloads
+        fun from(input: InputStream, length: Long = -1): WriteSource {
+            return InputStreamSource(input, length)
+        }
+
+        /**
+         * @param length 数据总长度，未知时传-1，只用于进度回调
+         */
+        @JvmStatic
+        @JvmOverloads
+        fun from(channel: ReadableByteChannel, length: Long = -1): WriteSource {
+            return ChannelSource(channel, if (length < 0 && channel is FileChannel) channel.size() - channel.position() else length)
+        }
+
+        /**
+         * 从position读到limit，读取时不复制整个缓冲区，可传入[java.nio.MappedByteBuffer]
+         */
+        @JvmStatic
+        fun from(buffer: ByteBuffer): WriteSource {
+            return ByteBufferSource(buffer.slice(), null)
+        }
+
+        /**
+         * 以内存映射的方式读取文件
+         */
+        @JvmStatic
+        @Throws(IOException::class)
+        fun from(file: File): WriteSource {
+            val channel = RandomAccessFile(file, "r").channel
+            return ByteBufferSource(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), channel)
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.snail.easyble.frame
+
+/**
+ * 分隔符帧解码器。以指定的字节序列结束一帧，输出的帧不包含分隔符，空帧忽略
+ *
+ * date: 2026/10/18 18:08
+ */
+class DelimiterFrameDecoder @JvmOverloads constructor(private val delimiter: ByteArray, maxFrameLength: Int = 4096) : FrameDecoder(maxFrameLength) {
+    //已查找过的位置，下次从这里开始，避免每个分片都从头查找
+    private var searchIndex = 0
+
+    init {
+        require(delimiter.isNotEmpty()) { "delimiter is empty" }
+    }
+
+    override fun decodeFrames(buffer: FrameBuffer, out: MutableList<ByteArray>) {
+        while (true) {
+            val index = buffer.indexOf(delimiter, searchIndex)
+            if (index < 0) {
+                searchIndex = Math.max(0, buffer.readableBytes - delimiter.size + 1)
+                return
+            }
+            if (index > 0) {
+                out.add(buffer.read(index))
+            }
+            buffer.skip(delimiter.size)
+            searchIndex = 0
+        }
+    }
+
+    override fun reset() {
+        super.reset()
+        searchIndex = 0
+    }
+}
@@ -0,0 +1,135 @@
+package com.snail.easyble.frame
+
+/**
+ * 组帧用的可增长缓冲区。收到的分片追加到末尾，取出完整帧后剩余数据前移，底层数组在解码器内复用，
+ * 只在容量不足时扩容，不会每个分片都复制一次已累积的数据
+ *
+ * date: 2026/10/18 17:52
+ */
+class FrameBuffer internal constructor(initialCapacity: Int) {
+    private var array = ByteArray(initialCapacity)
+    private var readIndex = 0
+    private var writeIndex = 0
+
+    /**
+     * 未取出的字节数
+     */
+    val readableBytes: Int
+        get() = writeIndex - readIndex
+
+    internal fun write(src: ByteArray, offset: Int, len: Int) {
+        ensureWritable(len)
+        System.arraycopy(src, offset, array, writeIndex, len)
+        writeIndex += len
+    }
+
+    internal fun write(b: Byte) {
+        ensureWritable(1)
+        array[writeIndex++] = b
+    }
+
+    private fun ensureWritable(len: Int) {
+        if (array.size - writeIndex >= len) {
+            return
+        }
+        val readable = readableBytes
+        if (array.size - readable >= len && readIndex >= readable) { //前移即可放下
+            System.arraycopy(array, readIndex, array, 0, readable)
+        } else {
+            var newSize = Math.max(array.size, 16)
+            while (newSize - readable < len) {
+                newSize = newSize shl 1
+            }
+            val newArray = ByteArray(newSize)
+            System.arraycopy(array, readIndex, newArray, 0, readable)
+            array = newArray
+        }
+        readIndex = 0
+        writeIndex = readable
+    }
+
+    /**
+     * 获取未取出数据中指定位置的字节
+     *
+     * @param index 相对于未取出数据起始位置的偏移
+     */
+    operator fun get(index: Int): Byte {
+        if (index < 0 || index >= readableBytes) {
+            throw IndexOutOfBoundsException("index: $index, readableBytes: $readableBytes")
+        }
+        return array[readIndex + index]
+    }
+
+    /**
+     * 按无符号整数读取，不取出
+     *
+     * @param index 相对于未取出数据起始位置的偏移
+     * @param size 字节数，1~8
+     */
+    fun getUnsigned(index: Int, size: Int, bigEndian: Boolean): Long {
+        if (index < 0 || index + size > readableBytes) {
+            throw IndexOutOfBoundsException("index: $index, size: $size, readableBytes: $readableBytes")
+        }
+        var value = 0L
+        for (i in 0 until size) {
+            val b = array[readIndex + index + (if (bigEndian) i else size - 1 - i)].toLong() and 0xff
+            value = (value shl 8) or b
+        }
+        return value
+    }
+
+    /**
+     * 在未取出数据中查找
+     *
+     * @return 相对于未取出数据起始位置的偏移，没找到时返回-1
+     */
+    fun indexOf(pattern: ByteArray, fromIndex: Int = 0): Int {
+        val end = writeIndex - pattern.size
+        var i = readIndex + Math.max(0, fromIndex)
+        outer@ while (i <= end) {
+            for (j in pattern.indices) {
+                if (array[i + j] != pattern[j]) {
+                    i++
+                    continue@outer
+                }
+            }
+            return i - readIndex
+        }
+        return -1
+    }
+
+    /**
+     * 取出指定长度的数据
+     */
+    fun read(len: Int): ByteArray {
+        if (len > readableBytes) {
+            throw IndexOutOfBoundsException("len: $len, readableBytes: $readableBytes")
+        }
+        val bytes = array.copyOfRange(readIndex, readIndex + len)
+        skip(len)
+        return bytes
+    }
+
+    /**
+     * 丢弃指定长度的数据
+     */
+    fun skip(len: Int) {
+        readIndex += Math.min(len, readableBytes)
+        if (readIndex == writeIndex) {
+            readIndex = 0
+            writeIndex = 0
+        }
+    }
+
+    /**
+     * 计算未取出数据中一段数据的校验值
+     */
+    fun checksum(checksum: FrameChecksum, index: Int, len: Int): Long {
+        return checksum.compute(array, readIndex + index, len)
+    }
+
+    fun clear() {
+        readIndex = 0
+        writeIndex = 0
+    }
+}
@@ -0,0 +1,68 @@
+package com.snail.easyble.frame
+
+import java.util.zip.CRC32
+
+/**
+ * 帧校验算法
+ *
+ * date: 2026/10/18 18:16
+ */
+interface FrameChecksum {
+    /**
+     * 校验值的字节数
+     */
+    val size: Int
+
+    fun compute(data: ByteArray, offset: Int, len: Int): Long
+
+    companion object {
+        /** CRC-16/CCITT-FALSE，多项式0x1021，初始值0xFFFF */
+        @JvmField
+        val CRC16_CCITT: FrameChecksum = object : FrameChecksum {
+            override val size = 2
+
+            override fun compute(data: ByteArray, offset: Int, len: Int): Long {
+                var crc = 0xFFFF
+                for (i in offset until offset + len) {
+                    crc = crc xor ((data[i].toInt() and 0xff) shl 8)
+                    for (j in 0 until 8) {
+                        crc = if (crc and 0x8000 != 0) (crc shl 1) xor 0x1021 else crc shl 1
+                    }
+                }
+                return (crc and 0xFFFF).toLong()
+            }
+        }
+
+        /** CRC-16/MODBUS，多项式0x8005（反转0xA001），初始值0xFFFF */
+        @JvmField
+        val CRC16_MODBUS: FrameChecksum = object : FrameChecksum {
+            override val size = 2
+
+            override fun compute(data: ByteArray, offset: Int, len: Int): Long {
+                var crc = 0xFFFF
+                for (i in offset until offset + len) {
+                    crc = crc xor (data[i].toInt() and 0xff)
+                    for (j in 0 until 8) {
+                        crc = if (crc and 1 != 0) (crc ushr 1) xor 0xA001 else crc ushr 1
+                    }
+                }
+                return crc.toLong()
+            }
+        }
+
+        /** CRC-32 */
+        @JvmField
+        val CRC_32: FrameChecksum = object : FrameChecksum {
+            override val size = 4
+            private val crc32 = CRC32()
+
+            override fun compute(data: ByteArray, offset: Int, len: Int): Long {
+                synchronized(crc32) {
+                    crc32.reset()
+                    crc32.update(data, offset, len)
+                    return crc32.value
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.snail.easyble.frame
+
+/**
+ * 帧解码器，把一个特征的多个通知数据组合成完整的帧。每个解码器有自己的状态，只能用于一个特征。
+ *
+ * 自定义解码器时实现[decodeFrames]，从缓冲区中取出所有完整的帧
+ *
+ * date: 2026/10/18 17:58
+ */
+abstract class FrameDecoder @JvmOverloads constructor(
+        /** 最大帧长度，累积的数据超过此长度还不能组成完整的帧时丢弃 */
+        val maxFrameLength: Int = 4096) {
+    private val buffer = FrameBuffer(Math.min(maxFrameLength, 256))
+
+    /**
+     * 因超长或者校验失败丢弃的字节数
+     */
+    var discardedBytes = 0L
+        private set
+
+    /**
+     * 输入一个分片，解出的完整帧添加到[out]
+     */
+    fun decode(data: ByteArray, out: MutableList<ByteArray>) {
+        append(buffer, data)
+        decodeFrames(buffer, out)
+        if (buffer.readableBytes > maxFrameLength) {
+            discardedBytes += buffer.readableBytes
+            reset()
+        }
+    }
+
+    /**
+     * 把分片追加到缓冲区，需要转义等处理时重写
+     */
+    protected open fun append(buffer: FrameBuffer, data: ByteArray) {
+        buffer.write(data, 0, data.size)
+    }
+
+    /**
+     * 从缓冲区中取出所有完整的帧，不完整的数据留在缓冲区中等待后续分片
+     */
+    protected abstract fun decodeFrames(buffer: FrameBuffer, out: MutableList<ByteArray>)
+
+    /**
+     * 丢弃无效数据
+     */
+    protected fun discard(buffer: FrameBuffer, len: Int) {
+        val n = Math.min(len, buffer.readableBytes)
+        discardedBytes += n
+        buffer.skip(n)
+    }
+
+    /**
+     * 清除未组成帧的数据，如断开连接后
+     */
+    open fun reset() {
+        buffer.clear()
+    }
+}
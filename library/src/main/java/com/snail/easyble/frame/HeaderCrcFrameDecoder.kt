@@ -0,0 +1,47 @@
+package com.snail.easyble.frame
+
+/**
+ * 帧头+校验帧解码器。帧格式为：帧头 | 长度字段 | 数据 | 校验值，长度字段表示数据的字节数，校验值由帧头到数据末尾计算。
+ * 帧头不匹配或者校验失败时丢弃一个字节，从下一个帧头重新同步。输出完整的帧
+ *
+ * date: 2026/10/18 18:22
+ */
+class HeaderCrcFrameDecoder @JvmOverloads constructor(private val header: ByteArray,
+                                                      /** 长度字段的字节数，1~4 */
+                                                      private val lengthFieldSize: Int,
+                                                      private val checksum: FrameChecksum,
+                                                      private val bigEndian: Boolean = true,
+                                                      maxFrameLength: Int = 4096) : FrameDecoder(maxFrameLength) {
+    init {
+        require(header.isNotEmpty()) { "header is empty" }
+    }
+
+    override fun decodeFrames(buffer: FrameBuffer, out: MutableList<ByteArray>) {
+        val prefixSize = header.size + lengthFieldSize
+        while (buffer.readableBytes >= prefixSize) {
+            val headerIndex = buffer.indexOf(header)
+            if (headerIndex != 0) {
+                //丢弃帧头之前的数据，没有帧头时保留可能是帧头一部分的末尾
+                discard(buffer, if (headerIndex > 0) headerIndex else buffer.readableBytes - header.size + 1)
+                continue
+            }
+            val dataLength = buffer.getUnsigned(header.size, lengthFieldSize, bigEndian)
+            val frameLength = prefixSize + dataLength + checksum.size
+            if (frameLength > maxFrameLength) {
+                discard(buffer, 1)
+                continue
+            }
+            if (buffer.readableBytes < frameLength) {
+                return
+            }
+            val checkedLength = (prefixSize + dataLength).toInt()
+            val expected = buffer.getUnsigned(checkedLength, checksum.size, bigEndian)
+            val mask = if (checksum.size >= 8) -1L else (1L shl (checksum.size * 8)) - 1
+            if (buffer.checksum(checksum, 0, checkedLength) and mask != expected) {
+                discard(buffer, 1)
+                continue
+            }
+            out.add(buffer.read(frameLength.toInt()))
+        }
+    }
+}
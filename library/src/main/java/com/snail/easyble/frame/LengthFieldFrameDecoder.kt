@@ -0,0 +1,32 @@
+package com.snail.easyble.frame
+
+/**
+ * 长度字段帧解码器。帧中固定位置有一个长度字段，表示长度字段之后的字节数，输出的帧包含长度字段及其之前的数据
+ *
+ * date: 2026/10/18 18:04
+ */
+class LengthFieldFrameDecoder @JvmOverloads constructor(
+        /** 长度字段在帧中的偏移 */
+        private val lengthFieldOffset: Int,
+        /** 长度字段的字节数，1~4 */
+        private val lengthFieldSize: Int,
+        private val bigEndian: Boolean = true,
+        /** 长度修正，长度字段的值加上此值为长度字段之后的实际字节数，如长度字段的值包含了整个帧的长度时为负的头部长度 */
+        private val lengthAdjustment: Int = 0,
+        maxFrameLength: Int = 4096) : FrameDecoder(maxFrameLength) {
+
+    override fun decodeFrames(buffer: FrameBuffer, out: MutableList<ByteArray>) {
+        val headerSize = lengthFieldOffset + lengthFieldSize
+        while (buffer.readableBytes >= headerSize) {
+            val frameLength = headerSize + buffer.getUnsigned(lengthFieldOffset, lengthFieldSize, bigEndian) + lengthAdjustment
+            if (frameLength < headerSize || frameLength > maxFrameLength) { //长度无效，丢弃一个字节重新同步
+                discard(buffer, 1)
+                continue
+            }
+            if (buffer.readableBytes < frameLength) {
+                return
+            }
+            out.add(buffer.read(frameLength.toInt()))
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.snail.easyble.frame
+
+/**
+ * SLIP（RFC 1055）帧解码器。以0xC0分隔帧，追加分片时即完成反转义，输出的帧为反转义后的数据，空帧忽略
+ *
+ * date: 2026/10/18 18:12
+ */
+class SlipFrameDecoder @JvmOverloads constructor(maxFrameLength: Int = 4096) : FrameDecoder(maxFrameLength) {
+    private var escaping = false
+    //当前帧在缓冲区中已反转义的长度
+    private var frameLength = 0
+    private val frameEnds = ArrayList<Int>()
+
+    override fun append(buffer: FrameBuffer, data: ByteArray) {
+        for (b in data) {
+            when {
+                escaping -> {
+                    escaping = false
+                    when (b) {
+                        ESC_END -> buffer.write(END)
+                        ESC_ESC -> buffer.write(ESC)
+                        else -> buffer.write(b) //协议错误，原样保留
+                    }
+                    frameLength++
+                }
+                b == ESC -> escaping = true
+                b == END -> {
+                    frameEnds.add(frameLength)
+                    frameLength = 0
+                }
+                else -> {
+                    buffer.write(b)
+                    frameLength++
+                }
+            }
+        }
+    }
+
+    override fun decodeFrames(buffer: FrameBuffer, out: MutableList<ByteArray>) {
+        frameEnds.forEach {
+            if (it > 0) {
+                out.add(buffer.read(it))
+            }
+        }
+        frameEnds.clear()
+    }
+
+    override fun reset() {
+        super.reset()
+        escaping = false
+        frameLength = 0
+        frameEnds.clear()
+    }
+
+    companion object {
+        private const val END = 0xC0.toByte()
+        private const val ESC = 0xDB.toByte()
+        private const val ESC_END = 0xDC.toByte()
+        private const val ESC_ESC = 0xDD.toByte()
+    }
+}
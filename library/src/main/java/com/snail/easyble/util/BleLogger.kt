@@ -13,6 +13,12 @@ class BleLogger internal constructor() {
     var logEnabled = false
     var filter: Filter? = null
 
+    /**
+     * 是否会输出或回调日志，为false时不必拼接日志内容
+     */
+    internal val isActive: Boolean
+        get() = logEnabled || logCallback != null
+
     @JvmOverloads
     fun handleLog(priority: Int, msg: String, type: Int = TYPE_GENERAL, tag: String = TAG) {
         logCallback?.onLog(tag, type, priority, msg)
@@ -90,10 +90,15 @@ object BleUtils {
      * @return 合好的字节数组
      */
     fun joinPackage(vararg src: ByteArray): ByteArray {
-        var bytes = ByteArray(0)
+        var size = 0
         for (bs in src) {
-            bytes = bytes.copyOf(bytes.size + bs.size)
-            System.arraycopy(bs, 0, bytes, bytes.size - bs.size, bs.size)
+            size += bs.size
+        }
+        val bytes = ByteArray(size)
+        var offset = 0
+        for (bs in src) {
+            System.arraycopy(bs, 0, bytes, offset, bs.size)
+            offset += bs.size
         }
         return bytes
     }
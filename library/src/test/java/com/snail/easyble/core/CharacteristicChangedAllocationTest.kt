@@ -0,0 +1,109 @@
+package com.snail.easyble.core
+
+import android.bluetooth.*
+import com.snail.easyble.annotation.InvokeThread
+import com.snail.easyble.annotation.RunOn
+import com.snail.easyble.callback.CharacteristicChangedCallback
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assume.assumeTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import org.robolectric.shadows.ShadowBluetoothGatt
+import java.lang.management.ManagementFactory
+import java.util.*
+
+/**
+ * 特征通知从GATT回调分发到在当前线程执行的观察者及回调，预热后不应分配内存
+ *
+ * date: 2026/10/18 19:40
+ */
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [28])
+class CharacteristicChangedAllocationTest {
+    private val threadMXBean = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+    private val observer = PostingObserver()
+    private val callback = PostingCallback()
+    private lateinit var connection: Connection
+    private lateinit var gatt: BluetoothGatt
+    private lateinit var characteristic: BluetoothGattCharacteristic
+
+    private class PostingObserver : SimpleEventObserver() {
+        var count = 0
+
+        @InvokeThread(RunOn.POSTING)
+        override fun onCharacteristicChanged(device: Device, serviceUuid: UUID, characteristicUuid: UUID, value: ByteArray) {
+            count++
+        }
+    }
+
+    private class PostingCallback : CharacteristicChangedCallback {
+        var count = 0
+
+        @InvokeThread(RunOn.POSTING)
+        override fun onCharacteristicChanged(device: Device, serviceUuid: UUID, characteristicUuid: UUID, value: ByteArray) {
+            count++
+        }
+    }
+
+    @Before
+    fun setUp() {
+        assumeTrue(threadMXBean.isThreadAllocatedMemorySupported)
+        threadMXBean.isThreadAllocatedMemoryEnabled = true
+        Ble.instance.logger.logEnabled = false
+        val bluetoothDevice = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(ADDR)
+        //连接由Ble.connect创建，这里直接构造，不发起连接
+        val constructor = Connection::class.java.getDeclaredConstructor(Device::class.java, BluetoothDevice::class.java, ConnectionConfig::class.java)
+        constructor.isAccessible = true
+        connection = constructor.newInstance(Device(bluetoothDevice), bluetoothDevice, ConnectionConfig())
+        connection.setCharacteristicChangedCallback(callback)
+        gatt = ShadowBluetoothGatt.newInstance(bluetoothDevice)
+        val service = BluetoothGattService(SERVICE_UUID, BluetoothGattService.SERVICE_TYPE_PRIMARY)
+        characteristic = BluetoothGattCharacteristic(CHARACTERISTIC_UUID, BluetoothGattCharacteristic.PROPERTY_NOTIFY, 0)
+        characteristic.value = byteArrayOf(1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20)
+        service.addCharacteristic(characteristic)
+        //有缓存时收到通知需失效缓存，也不能分配内存
+        val field = BaseConnection::class.java.getDeclaredField("readCache")
+        field.isAccessible = true
+        val readCache = field.get(connection) as ReadCache
+        readCache.put(SERVICE_UUID, CHARACTERISTIC_UUID, null, byteArrayOf(0), 60000)
+        readCache.put(SERVICE_UUID, UUID.randomUUID(), null, byteArrayOf(0), 60000)
+        Ble.instance.registerObserver(observer)
+    }
+
+    @After
+    fun tearDown() {
+        Ble.instance.unregisterObserver(observer)
+    }
+
+    @Test
+    fun dispatchToPostingObserverDoesNotAllocate() {
+        //预热，解析调用线程、创建事件记录器等只在第一次发生
+        repeat(WARMUP_COUNT) { connection.onCharacteristicChanged(gatt, characteristic) }
+        val overhead = measureAllocatedBytes { }
+        val allocated = measureAllocatedBytes {
+            repeat(COUNT) { connection.onCharacteristicChanged(gatt, characteristic) }
+        } - overhead
+        assertEquals(WARMUP_COUNT + COUNT, observer.count)
+        assertEquals(WARMUP_COUNT + COUNT, callback.count)
+        assertEquals("bytes allocated per notification, total: $allocated", 0, allocated / COUNT)
+    }
+
+    private inline fun measureAllocatedBytes(block: () -> Unit): Long {
+        val threadId = Thread.currentThread().id
+        val start = threadMXBean.getThreadAllocatedBytes(threadId)
+        block()
+        return threadMXBean.getThreadAllocatedBytes(threadId) - start
+    }
+
+    companion object {
+        private const val ADDR = "11:22:33:44:55:66"
+        private val SERVICE_UUID = UUID.fromString("0000ffe0-0000-1000-8000-00805f9b34fb")
+        private val CHARACTERISTIC_UUID = UUID.fromString("0000ffe1-0000-1000-8000-00805f9b34fb")
+        private const val WARMUP_COUNT = 20000
+        private const val COUNT = 100000
+    }
+}
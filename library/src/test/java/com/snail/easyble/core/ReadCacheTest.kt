@@ -0,0 +1,66 @@
+package com.snail.easyble.core
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import java.util.*
+
+/**
+ * 写请求排队及执行期间的读缓存
+ *
+ * date: 2026/10/18 20:05
+ */
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [28])
+class ReadCacheTest {
+    private val cache = ReadCache()
+
+    @Test
+    fun readInFlightDuringWriteIsNotCached() {
+        cache.put(SERVICE_UUID, CHARACTERISTIC_UUID, null, OLD_VALUE, TTL)
+        //写请求入队，缓存的旧值失效
+        cache.beginWrite(SERVICE_UUID, CHARACTERISTIC_UUID)
+        assertNull(cache.get(SERVICE_UUID, CHARACTERISTIC_UUID, null))
+        //写之前发出的读在写入队后才返回旧值
+        cache.put(SERVICE_UUID, CHARACTERISTIC_UUID, null, OLD_VALUE, TTL)
+        //排在写之后的读不能从缓存得到旧值
+        assertNull(cache.get(SERVICE_UUID, CHARACTERISTIC_UUID, null))
+        cache.endWrite(SERVICE_UUID, CHARACTERISTIC_UUID)
+        assertNull(cache.get(SERVICE_UUID, CHARACTERISTIC_UUID, null))
+        //写完成后读到的值正常缓存
+        cache.put(SERVICE_UUID, CHARACTERISTIC_UUID, null, NEW_VALUE, TTL)
+        assertArrayEquals(NEW_VALUE, cache.get(SERVICE_UUID, CHARACTERISTIC_UUID, null))
+    }
+
+    @Test
+    fun cachingResumesAfterAllWritesFinish() {
+        cache.beginWrite(SERVICE_UUID, CHARACTERISTIC_UUID)
+        cache.beginWrite(SERVICE_UUID, CHARACTERISTIC_UUID)
+        cache.endWrite(SERVICE_UUID, CHARACTERISTIC_UUID)
+        //还有一个写请求未完成
+        cache.put(SERVICE_UUID, CHARACTERISTIC_UUID, null, OLD_VALUE, TTL)
+        assertNull(cache.get(SERVICE_UUID, CHARACTERISTIC_UUID, null))
+        cache.endWrite(SERVICE_UUID, CHARACTERISTIC_UUID)
+        cache.put(SERVICE_UUID, CHARACTERISTIC_UUID, null, NEW_VALUE, TTL)
+        assertArrayEquals(NEW_VALUE, cache.get(SERVICE_UUID, CHARACTERISTIC_UUID, null))
+    }
+
+    @Test
+    fun writeDoesNotAffectOtherCharacteristics() {
+        val other = UUID.fromString("0000ffe2-0000-1000-8000-00805f9b34fb")
+        cache.put(SERVICE_UUID, other, null, OLD_VALUE, TTL)
+        cache.beginWrite(SERVICE_UUID, CHARACTERISTIC_UUID)
+        assertArrayEquals(OLD_VALUE, cache.get(SERVICE_UUID, other, null))
+    }
+
+    companion object {
+        private val SERVICE_UUID = UUID.fromString("0000ffe0-0000-1000-8000-00805f9b34fb")
+        private val CHARACTERISTIC_UUID = UUID.fromString("0000ffe1-0000-1000-8000-00805f9b34fb")
+        private val OLD_VALUE = byteArrayOf(1, 2, 3)
+        private val NEW_VALUE = byteArrayOf(4, 5, 6)
+        private const val TTL = 60000L
+    }
+}